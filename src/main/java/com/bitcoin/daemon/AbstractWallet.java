@@ -12,7 +12,7 @@ public interface AbstractWallet<A, T extends AbstractTransaction> {
     public List<T> getTransactions(final Set<A> addresses) throws Exception;
     public List<T> getTransactions() throws Exception;
     public T getTransaction(String transactionId) throws Exception;
-    public void loadTransactions(int maxCount) throws Exception;
+    public Set<A> loadTransactions(int maxCount) throws Exception; // Addresses with changed balance or transactions
     public A generateNewAddress() throws Exception;
     public T sendToAddress(A address, BigDecimal amount) throws Exception;
 }
@@ -150,17 +150,22 @@ public class BitcoinWallet implements AbstractWallet<String, Address.Transaction
         return result;
     }
 
-    public void loadTransactions(int maxCount) throws Exception { // Expensive
+    public Set<String> loadTransactions(int maxCount) throws Exception { // Expensive
         // loadAddresses();
         final List<Address.Transaction> transactions = getDefaultAccount().listTransactions(maxCount);
         final Map<String, BigDecimal> receivedByAddress = listReceivedByAddress();
 
         final Map<String, Address> addressList = new HashMap<>();
+        final Map<String, Address> previousAddressList = addressListRef.get();
+        final Map<String, Address.Transaction> previousTransactions;
+        final Set<String> changed = new HashSet<>();
 
         if (transactionMap.size() > maxCount * 3) { // Cache clean
+            previousTransactions = new HashMap<>(transactionMap);
             transactionMap.clear();
         } else {
-            addressList.putAll(addressListRef.get());
+            previousTransactions = transactionMap;
+            addressList.putAll(previousAddressList);
         }
 
         Address address = null;
@@ -171,13 +176,19 @@ public class BitcoinWallet implements AbstractWallet<String, Address.Transaction
                     address = new Address(entry.getKey());
                     addressList.put(entry.getKey(), address);
                 }
+                final Address previous = previousAddressList.get(entry.getKey());
+                if (previous == null || previous.getReceivedByAddress().compareTo(entry.getValue()) != 0) changed.add(entry.getKey());
                 address.setReceivedByAddress(entry.getValue());
             }
         }
         for(Address.Transaction transaction : transactions) {
             Assert.isTrue(transaction.getTxid().matches(Settings.BITCOIN_TXID_REGEXP), "Invalid transaction: " + transaction);
+            final Address.Transaction previous = previousTransactions.get(transaction.getTxid());
             transactionMap.put(transaction.getTxid(), transaction);
             if(transaction.getAddress() != null && transaction.getAddress().length() > 0 && "receive".equals(transaction.category)) {
+                if (previous == null || (!previous.isConfirmed() && previous.confirmations != transaction.confirmations)) { // New or confirming
+                    changed.add(transaction.getAddress());
+                }
                 if(address == null || !address.getAddress().equals(transaction.address)) {
                     address = addressList.get(transaction.address);
                     if(address == null) {
@@ -190,6 +201,7 @@ public class BitcoinWallet implements AbstractWallet<String, Address.Transaction
         }
 
         addressListRef.set(Collections.unmodifiableMap(addressList));
+        return changed;
     }
 
     public Set<String> getAddressSet() throws Exception {
@@ -0,0 +1,135 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Candle;
+import com.springapp.cryptoexchange.utils.Calculator;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Open candles of one trading pair in every interval, closed ones are kept until flushed
+// Prices and amounts are fixed-point units (see Calculator)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class CandleAggregator {
+    @Data
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class Bucket {
+        final Candle.Interval interval;
+        final long openTime;
+        Long candleId; // Null until written
+        long open, high, low, close, volume;
+        boolean closed;
+
+        public Bucket copy() {
+            return new Bucket(interval, openTime, candleId, open, high, low, close, volume, closed);
+        }
+
+        public Candle toCandle(Candle candle) {
+            candle.setInterval(interval);
+            candle.setOpenTime(new Date(openTime));
+            candle.setCloseTime(closed ? new Date(openTime + interval.getMillis()) : null);
+            candle.setOpen(Calculator.fromUnits(open));
+            candle.setHigh(Calculator.fromUnits(high));
+            candle.setLow(Calculator.fromUnits(low));
+            candle.setClose(Calculator.fromUnits(close));
+            candle.setVolume(Calculator.fromUnits(volume));
+            return candle;
+        }
+    }
+
+    @Getter
+    final long tradingPairId;
+
+    Bucket[] current = new Bucket[Candle.Interval.values().length];
+    boolean[] dirty = new boolean[current.length];
+    List<Bucket> closed = new ArrayList<>();
+
+    public CandleAggregator(long tradingPairId) {
+        this.tradingPairId = tradingPairId;
+    }
+
+    private void close(int index) {
+        final Bucket bucket = current[index];
+        bucket.setClosed(true);
+        closed.add(bucket);
+        current[index] = null;
+        dirty[index] = false;
+    }
+
+    public synchronized void update(long time, long price, long amount) {
+        for (Candle.Interval interval : Candle.Interval.values()) {
+            final int index = interval.ordinal();
+            final long openTime = interval.getOpenTime(time);
+            Bucket bucket = current[index];
+            if (bucket != null && bucket.getOpenTime() < openTime) {
+                close(index);
+                bucket = null;
+            }
+            if (bucket == null) { // Fill with an older time goes to the open bucket
+                bucket = new Bucket(interval, openTime, null, price, price, price, price, 0, false);
+                current[index] = bucket;
+            }
+            bucket.setHigh(Math.max(bucket.getHigh(), price));
+            bucket.setLow(Math.min(bucket.getLow(), price));
+            bucket.setClose(price);
+            bucket.setVolume(Calculator.addExact(bucket.getVolume(), amount));
+            dirty[index] = true;
+        }
+    }
+
+    // Open candle written before restart continues in memory, stale ones are closed on flush
+    public synchronized void load(@NonNull Candle candle, long now) {
+        final Candle.Interval interval = candle.getInterval();
+        final long openTime = candle.getOpenTime().getTime();
+        final Bucket bucket = new Bucket(interval, openTime, candle.getId(), Calculator.toUnits(candle.getOpen()), Calculator.toUnits(candle.getHigh()),
+                Calculator.toUnits(candle.getLow()), Calculator.toUnits(candle.getClose()), Calculator.toUnits(candle.getVolume()), false);
+        if (openTime == interval.getOpenTime(now) && current[interval.ordinal()] == null) {
+            current[interval.ordinal()] = bucket;
+        } else {
+            bucket.setClosed(true);
+            closed.add(bucket);
+        }
+    }
+
+    public synchronized Bucket getCurrent(@NonNull Candle.Interval interval) {
+        final Bucket bucket = current[interval.ordinal()];
+        return bucket == null ? null : bucket.copy();
+    }
+
+    // Closed buckets and copies of changed open ones, written buckets get their ids through setWritten
+    public synchronized List<Bucket> drain() {
+        final List<Bucket> changed = new ArrayList<>(closed);
+        closed = new ArrayList<>();
+        for (int i = 0; i < current.length; i++) {
+            if (dirty[i]) {
+                changed.add(current[i]);
+                dirty[i] = false;
+            }
+        }
+        final List<Bucket> copies = new ArrayList<>(changed.size());
+        for (Bucket bucket : changed) copies.add(bucket.copy());
+        return copies;
+    }
+
+    public synchronized void setWritten(@NonNull Bucket written) {
+        final Bucket bucket = current[written.getInterval().ordinal()];
+        if (bucket != null && bucket.getOpenTime() == written.getOpenTime()) {
+            bucket.setCandleId(written.getCandleId());
+        }
+    }
+
+    // Failed flush is retried with the next one
+    public synchronized void requeue(@NonNull List<Bucket> buckets) {
+        for (Bucket bucket : buckets) {
+            if (bucket.isClosed()) {
+                closed.add(bucket);
+            } else { // Closed meanwhile otherwise, and written with its final values
+                final Bucket open = current[bucket.getInterval().ordinal()];
+                if (open != null && open.getOpenTime() == bucket.getOpenTime()) dirty[bucket.getInterval().ordinal()] = true;
+            }
+        }
+    }
+}
@@ -128,6 +128,23 @@ public class DaemonManagerImpl implements DaemonManager {
         }
     }
 
+    // Only wallets owning changed addresses are uncached
+    @SuppressWarnings("unchecked")
+    private int evictChangedWallets(Collection<?> addresses) {
+        final Session session = sessionFactory.getCurrentSession();
+        final List<Object> addressList = new ArrayList<Object>(addresses);
+        int count = 0;
+        for (int i = 0; i < addressList.size(); i += 500) { // Bounded IN lists
+            final List<Object[]> wallets = session.createQuery("select distinct wallet.id, wallet.account.login, wallet.currency.id " +
+                    "from Address address join address.virtualWallet wallet where address.address in (:addresses)")
+                    .setParameterList("addresses", addressList.subList(i, Math.min(i + 500, addressList.size())))
+                    .list();
+            for (Object[] wallet : wallets) cacheCleaner.cryptoBalanceEvict((Long) wallet[0], (String) wallet[1], (Long) wallet[2]);
+            count += wallets.size();
+        }
+        return count;
+    }
+
     @Scheduled(fixedDelay = 8 * 60 * 1000) // Every 8m
     @Transactional(readOnly = true)
     public synchronized void loadTransactions() throws Exception {
@@ -138,12 +155,15 @@ public class DaemonManagerImpl implements DaemonManager {
             try {
                 DaemonInfo daemonInfo = daemonMap.get(currency.getId());
                 Assert.notNull(daemonInfo, String.format("Daemon settings not found for currency: %s", currency));
-                daemonInfo.getWallet().loadTransactions(300);
+                final Set<?> changed = daemonInfo.getWallet().loadTransactions(300);
+                if (!changed.isEmpty()) {
+                    int wallets = evictChangedWallets(changed);
+                    log.debug(String.format("Changed addresses of %s: %d, wallets uncached: %d", currency.getCode(), changed.size(), wallets));
+                }
             } catch (DaemonRpcException exc) {
                 log.error("Daemon error for currency: " + currency, exc);
             }
         }
-        cacheCleaner.cryptoBalanceEvict();
     }
 
     public AbstractWallet getAccount(@NonNull Currency currency) {
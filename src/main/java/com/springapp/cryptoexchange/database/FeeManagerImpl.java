@@ -11,6 +11,7 @@ import lombok.NonNull;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.apachecommons.CommonsLog;
 import org.hibernate.FetchMode;
+import org.hibernate.LockMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
@@ -46,8 +47,13 @@ public class FeeManagerImpl implements FeeManager {
     AccountManager accountManager;
 
     private FreeBalance getFreeBalance(Session session, Currency currency) {
+        return getFreeBalance(session, currency, LockMode.NONE);
+    }
+
+    private FreeBalance getFreeBalance(Session session, Currency currency, LockMode lockMode) {
         FreeBalance balance = (FreeBalance) session.createCriteria(FreeBalance.class)
                 .add(Restrictions.eq("currency", currency))
+                .setLockMode(lockMode)
                 .uniqueResult();
         if(balance == null) {
             balance = new FreeBalance(currency);
@@ -77,7 +83,7 @@ public class FeeManagerImpl implements FeeManager {
             return;
         }
         Session session = sessionFactory.getCurrentSession();
-        FreeBalance freeBalance = getFreeBalance(session, currency);
+        FreeBalance freeBalance = getFreeBalance(session, currency, LockMode.PESSIMISTIC_WRITE); // Shared by all pairs of currency
         try {
             BigDecimal newTotal = freeBalance.getAmount();
             newTotal = newTotal == null ? feeAmount : newTotal.add(feeAmount);
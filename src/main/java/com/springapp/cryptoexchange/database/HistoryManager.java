@@ -2,15 +2,48 @@ package com.springapp.cryptoexchange.database;
 
 
 import com.springapp.cryptoexchange.database.model.Account;
+import com.springapp.cryptoexchange.database.model.Candle;
+import com.springapp.cryptoexchange.database.model.Trade;
 import com.springapp.cryptoexchange.database.model.TradingPair;
+import lombok.NonNull;
+import lombok.Value;
 import org.hibernate.Criteria;
 
 import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
 
 public interface HistoryManager {
+    @Value
+    public static class Cursor { // Position after the last trade of a page, "time_id"
+        long time, id;
+
+        public static Cursor of(Trade trade) {
+            return new Cursor(trade.getTime().getTime(), trade.getId());
+        }
+
+        public static Cursor parse(@NonNull String cursor) {
+            final String[] parts = cursor.split("_");
+            if (parts.length != 2) throw new IllegalArgumentException("Invalid cursor");
+            try {
+                return new Cursor(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return time + "_" + id;
+        }
+    }
+
     void updateMarketInfo(TradingPair tradingPair, final BigDecimal price, final BigDecimal amount);
-    Criteria getMarketChartData(TradingPair tradingPair);
-    Criteria getMarketHistory(TradingPair tradingPair);
-    Criteria getAccountHistory(Account account);
-    Criteria getAccountHistoryByPair(TradingPair tradingPair, Account account);
+    TradingPair withTicker(TradingPair tradingPair);
+    long getTickerVersion(long tradingPairId);
+    List<Candle> getMarketChartData(TradingPair tradingPair, Candle.Interval interval, int limit);
+    List<Candle> getMarketChartData(TradingPair tradingPair, Candle.Interval interval, Date from, Date to, int limit);
+    Candle getCurrentCandle(TradingPair tradingPair, Candle.Interval interval);
+    Criteria getMarketHistory(TradingPair tradingPair, Cursor before);
+    List<Trade> getAccountHistory(Account account, TradingPair tradingPair, Cursor before, int limit);
 }
@@ -2,9 +2,10 @@ package com.springapp.cryptoexchange.database;
 
 import com.springapp.cryptoexchange.database.model.Account;
 import com.springapp.cryptoexchange.database.model.Candle;
-import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.database.model.Trade;
 import com.springapp.cryptoexchange.database.model.TradingPair;
 import com.springapp.cryptoexchange.utils.CacheCleaner;
+import com.springapp.cryptoexchange.utils.Calculator;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.experimental.FieldDefaults;
@@ -13,26 +14,34 @@ import org.hibernate.Criteria;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.StandardBasicTypes;
+import org.hibernate.type.Type;
 import org.joda.time.DateTime;
-import org.joda.time.Period;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Caching;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
 
 import java.math.BigDecimal;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Repository
 @FieldDefaults(level = AccessLevel.PRIVATE)
 @CommonsLog
 public class HistoryManagerImpl implements HistoryManager {
-    static final Period chartPeriod = Period.hours(1);
+    final Map<Long, CandleAggregator> candleAggregators = new ConcurrentHashMap<>();
+    final Map<Long, TickerWindow> tickerWindows = new ConcurrentHashMap<>();
 
     @Autowired
     SettingsManager settingsManager;
@@ -43,93 +52,313 @@ public class HistoryManagerImpl implements HistoryManager {
     @Autowired
     CacheCleaner cacheCleaner;
 
-    @SuppressWarnings("unchecked")
-    private void updateChartData(@NonNull TradingPair tradingPair, final BigDecimal lastPrice, final BigDecimal amount) {
-        Session session = sessionFactory.getCurrentSession();
-        final List<Candle> candleList = session.createCriteria(Candle.class)
-                .add(Restrictions.eq("tradingPair", tradingPair))
-                .add(Restrictions.isNull("closeTime"))
-                .addOrder(org.hibernate.criterion.Order.desc("openTime"))
-                .setMaxResults(1)
-                .list();
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private CandleAggregator getCandleAggregator(Session session, TradingPair tradingPair) {
+        CandleAggregator aggregator = candleAggregators.get(tradingPair.getId());
+        if (aggregator == null) {
+            synchronized (candleAggregators) {
+                aggregator = candleAggregators.get(tradingPair.getId());
+                if (aggregator == null) { // Continues open candles written before restart
+                    aggregator = new CandleAggregator(tradingPair.getId());
+                    @SuppressWarnings("unchecked")
+                    final List<Candle> openCandles = session.createCriteria(Candle.class)
+                            .add(Restrictions.eq("tradingPair", tradingPair))
+                            .add(Restrictions.isNull("closeTime"))
+                            .list();
+                    for (Candle candle : openCandles) aggregator.load(candle, System.currentTimeMillis());
+                    candleAggregators.put(tradingPair.getId(), aggregator);
+                }
+            }
+        }
+        return aggregator;
+    }
+
+    private void writeCandles(Session session, CandleAggregator aggregator, List<CandleAggregator.Bucket> buckets) {
+        final TradingPair tradingPair = (TradingPair) session.get(TradingPair.class, aggregator.getTradingPairId());
+        Assert.notNull(tradingPair, "Trading pair not found");
+        for (CandleAggregator.Bucket bucket : buckets) {
+            Candle candle = bucket.getCandleId() == null ? null : (Candle) session.get(Candle.class, bucket.getCandleId());
+            if (candle == null) { // Not written by this instance
+                candle = (Candle) session.createCriteria(Candle.class)
+                        .add(Restrictions.eq("tradingPair", tradingPair))
+                        .add(Restrictions.eq("interval", bucket.getInterval()))
+                        .add(Restrictions.eq("openTime", new Date(bucket.getOpenTime())))
+                        .uniqueResult();
+            }
+            if (candle == null) {
+                candle = new Candle(tradingPair);
+            }
+            session.saveOrUpdate(bucket.toCandle(candle));
+            bucket.setCandleId(candle.getId());
+        }
+    }
 
-        Candle lastCandle = candleList == null || candleList.isEmpty() ? new Candle(tradingPair) : candleList.get(0);
-        if (lastCandle.timeToClose(chartPeriod)) { // next
-            lastCandle.close();
-            session.saveOrUpdate(lastCandle);
-            log.info("Closed: " + lastCandle);
-            lastCandle = new Candle(tradingPair, lastCandle);
+    // Changed candles of each pair are written in one transaction
+    @Scheduled(fixedDelay = 10 * 1000) // Every 10s
+    public void flushChartData() {
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        for (final CandleAggregator aggregator : candleAggregators.values()) {
+            final List<CandleAggregator.Bucket> buckets = aggregator.drain();
+            if (buckets.isEmpty()) continue;
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+                        writeCandles(sessionFactory.getCurrentSession(), aggregator, buckets);
+                    }
+                });
+            } catch (Exception e) {
+                log.warn(String.format("Chart data of trading pair #%d not written, retrying later: %s", aggregator.getTradingPairId(), e.getMessage()));
+                aggregator.requeue(buckets);
+                continue;
+            }
+            final Set<Candle.Interval> intervals = EnumSet.noneOf(Candle.Interval.class);
+            for (CandleAggregator.Bucket bucket : buckets) {
+                if (!bucket.isClosed()) aggregator.setWritten(bucket);
+                intervals.add(bucket.getInterval());
+            }
+            for (Candle.Interval interval : intervals) cacheCleaner.marketChartEvict(aggregator.getTradingPairId(), interval);
         }
-        lastCandle.update(lastPrice, amount);
-        session.saveOrUpdate(lastCandle);
-        log.info(lastCandle);
     }
 
+    private TickerWindow getTickerWindow(Session session, TradingPair tradingPair) {
+        TickerWindow tickerWindow = tickerWindows.get(tradingPair.getId());
+        if (tickerWindow == null) {
+            synchronized (tickerWindows) {
+                tickerWindow = tickerWindows.get(tradingPair.getId());
+                if (tickerWindow == null) { // Minute candles of the last day
+                    tickerWindow = new TickerWindow(tradingPair.getId());
+                    @SuppressWarnings("unchecked")
+                    final List<Candle> candles = session.createCriteria(Candle.class)
+                            .add(Restrictions.eq("tradingPair", tradingPair))
+                            .add(Restrictions.eq("interval", Candle.Interval.M1))
+                            .add(Restrictions.ge("openTime", DateTime.now().minusDays(1).toDate()))
+                            .list();
+                    for (Candle candle : candles) {
+                        tickerWindow.load(candle.getOpenTime().getTime(), Calculator.toUnits(candle.getOpen()), Calculator.toUnits(candle.getHigh()),
+                                Calculator.toUnits(candle.getLow()), Calculator.toUnits(candle.getClose()), Calculator.toUnits(candle.getVolume()));
+                    }
+                    tickerWindows.put(tradingPair.getId(), tickerWindow);
+                }
+            }
+        }
+        return tickerWindow;
+    }
+
+    // Candles and ticker only see committed trades: a flush can not write a trade that is rolled back later
     @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED)
-    @Caching(evict = {
-            @CacheEvict(value = "getMarketChartData", key = "#tradingPair.id")
-    })
-    public void updateMarketInfo(@NonNull TradingPair tradingPair, final BigDecimal price, final BigDecimal amount) {
+    public void updateMarketInfo(@NonNull final TradingPair tradingPair, final BigDecimal price, final BigDecimal amount) {
         Session session = sessionFactory.getCurrentSession();
-        tradingPair = (TradingPair) session.load(TradingPair.class, tradingPair.getId());
-        if(tradingPair.getLastReset() == null || DateTime.now().minusDays(1).isAfter(new DateTime(tradingPair.getLastReset()))) {
-            tradingPair.setLastReset(new Date());
-            tradingPair.setDayHigh(null);
-            tradingPair.setDayLow(null);
-            tradingPair.setVolume(BigDecimal.ZERO);
+        final CandleAggregator aggregator = getCandleAggregator(session, tradingPair);
+        final TickerWindow tickerWindow = getTickerWindow(session, tradingPair);
+        final long time = System.currentTimeMillis();
+        final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                aggregator.update(time, Calculator.toUnits(price), Calculator.toUnits(amount));
+                tickerWindow.update(time, Calculator.toUnits(price), Calculator.toUnits(amount));
+                cacheCleaner.marketPricesEvict(tradingPair);
+                cacheCleaner.marketChartResponseEvict(tradingPair.getId());
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    update.run();
+                }
+            });
+        } else {
+            update.run();
+        }
+    }
+
+    private static void setTicker(TradingPair tradingPair, TickerWindow.Stats stats) {
+        if (stats.getLast() != 0) {
+            tradingPair.setLastPrice(Calculator.fromUnits(stats.getLast()));
         }
+        tradingPair.setDayHigh(stats.getHigh() == 0 ? null : Calculator.fromUnits(stats.getHigh()));
+        tradingPair.setDayLow(stats.getLow() == 0 ? null : Calculator.fromUnits(stats.getLow()));
+        tradingPair.setVolume(Calculator.fromUnits(stats.getVolume()));
+        tradingPair.setDayChange(stats.getFirst() == 0 ? BigDecimal.ZERO : Calculator.fromUnits(stats.getLast() - stats.getFirst()));
+    }
+
+    // Pairs traded in this instance get statistics from memory, others keep the published ones
+    public TradingPair withTicker(@NonNull TradingPair tradingPair) {
+        final TickerWindow tickerWindow = tickerWindows.get(tradingPair.getId());
+        if (tickerWindow != null) {
+            setTicker(tradingPair, tickerWindow.getStats(System.currentTimeMillis()));
+        }
+        return tradingPair;
+    }
+
+    // -1 if there were no trades in this instance
+    public long getTickerVersion(long tradingPairId) {
+        final TickerWindow tickerWindow = tickerWindows.get(tradingPairId);
+        return tickerWindow == null ? -1 : tickerWindow.getVersion();
+    }
 
-        BigDecimal low = tradingPair.getDayLow(), high = tradingPair.getDayHigh(), volume = tradingPair.getVolume();
-        if(low == null || low.equals(BigDecimal.ZERO) || price.compareTo(low) < 0) {
-            tradingPair.setDayLow(price);
+    // Pair rows are written once a minute instead of on every trade, window also moves without trades
+    @Scheduled(fixedDelay = 60 * 1000) // Every 1m
+    @Transactional
+    public void flushTickers() {
+        Session session = sessionFactory.getCurrentSession();
+        final long now = System.currentTimeMillis();
+        for (TickerWindow tickerWindow : tickerWindows.values()) {
+            final TickerWindow.Stats stats = tickerWindow.getStats(now);
+            if (stats.equals(tickerWindow.getWritten())) continue;
+            final TradingPair tradingPair = (TradingPair) session.get(TradingPair.class, tickerWindow.getTradingPairId());
+            if (tradingPair == null) continue;
+            setTicker(tradingPair, stats);
+            tradingPair.setLastReset(new Date(now));
+            session.update(tradingPair);
+            tickerWindow.setWritten(stats);
+            cacheCleaner.marketPricesEvict(tradingPair);
         }
-        if(high == null || price.compareTo(high) > 0) {
-            tradingPair.setDayHigh(price);
+    }
+
+    // Newest first, row comparison keeps every page an index range scan however deep
+    private static Criteria page(Criteria criteria, HistoryManager.Cursor before) {
+        if (before != null) {
+            criteria.add(Restrictions.sqlRestriction("({alias}.trade_time, {alias}.id) < (?, ?)",
+                    new Object[]{new Date(before.getTime()), before.getId()}, new Type[]{StandardBasicTypes.TIMESTAMP, StandardBasicTypes.LONG}));
         }
-        tradingPair.setLastPrice(price);
-        tradingPair.setVolume(volume == null ? amount : volume.add(amount));
-        updateChartData(tradingPair, price, amount);
-        session.update(tradingPair);
-        cacheCleaner.marketPricesEvict(tradingPair);
+        return criteria
+                .addOrder(org.hibernate.criterion.Order.desc("time"))
+                .addOrder(org.hibernate.criterion.Order.desc("id"));
     }
 
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
-    public Criteria getMarketHistory(@NonNull TradingPair tradingPair) {
+    public Criteria getMarketHistory(@NonNull TradingPair tradingPair, HistoryManager.Cursor before) {
         Session session = sessionFactory.getCurrentSession();
-        return session.createCriteria(Order.class)
-                .add(Restrictions.eq("tradingPair", tradingPair))
-                .add(Restrictions.in("status", Arrays.asList(Order.Status.COMPLETED, Order.Status.PARTIALLY_CANCELLED)))
-                .addOrder(org.hibernate.criterion.Order.desc("updateDate"));
+        return page(session.createCriteria(Trade.class)
+                .add(Restrictions.eq("tradingPair", tradingPair)), before);
     }
 
+    private Criteria getAccountSide(Session session, String side, Account account, TradingPair tradingPair, HistoryManager.Cursor before, int limit) {
+        final Criteria criteria = session.createCriteria(Trade.class).add(Restrictions.eq(side, account));
+        if (tradingPair != null) criteria.add(Restrictions.eq("tradingPair", tradingPair));
+        return page(criteria, before).setMaxResults(limit);
+    }
+
+    // Sides are read by their own indexes and merged, a disjunction would sort all trades of the account
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
-    public Criteria getAccountHistory(@NonNull Account account) {
+    public List<Trade> getAccountHistory(@NonNull Account account, TradingPair tradingPair, HistoryManager.Cursor before, int limit) {
         Session session = sessionFactory.getCurrentSession();
-        return session.createCriteria(Order.class)
-                .add(Restrictions.eq("account", account))
-                .add(Restrictions.in("status", Arrays.asList(Order.Status.COMPLETED, Order.Status.PARTIALLY_CANCELLED)))
-                .addOrder(org.hibernate.criterion.Order.desc("updateDate"));
+        return merge(getAccountSide(session, "seller", account, tradingPair, before, limit).list(),
+                getAccountSide(session, "buyer", account, tradingPair, before, limit).list(), limit);
     }
 
+    // Newest first pages of both sides merged into one of up to limit trades
+    static List<Trade> merge(List<Trade> sold, List<Trade> bought, int limit) {
+        final List<Trade> trades = new ArrayList<>(Math.min(limit, sold.size() + bought.size()));
+        int i = 0, j = 0;
+        while (trades.size() < limit && (i < sold.size() || j < bought.size())) {
+            final Trade next;
+            if (j >= bought.size()) {
+                next = sold.get(i++);
+            } else if (i >= sold.size()) {
+                next = bought.get(j++);
+            } else {
+                final Trade s = sold.get(i), b = bought.get(j);
+                final int compare = s.getTime().compareTo(b.getTime()) != 0 ? s.getTime().compareTo(b.getTime()) : Long.compare(s.getId(), b.getId());
+                if (compare == 0) j++; // Account traded with itself
+                next = compare >= 0 ? sold.get(i++) : bought.get(j++);
+            }
+            trades.add(next);
+        }
+        return trades;
+    }
+
+    // Written candles, the open one may be behind the one in memory
     @Transactional(readOnly = true)
+    @Cacheable(value = "getMarketChartData", key = "#tradingPair.id + '/' + #interval.code")
     @SuppressWarnings("unchecked")
-    public Criteria getAccountHistoryByPair(@NonNull TradingPair tradingPair, @NonNull Account account) {
+    public List<Candle> getMarketChartData(@NonNull TradingPair tradingPair, @NonNull Candle.Interval interval, int limit) {
         Session session = sessionFactory.getCurrentSession();
-        return session.createCriteria(Order.class)
-                .add(Restrictions.eq("account", account))
+        return session.createCriteria(Candle.class)
                 .add(Restrictions.eq("tradingPair", tradingPair))
-                .add(Restrictions.in("status", Arrays.asList(Order.Status.COMPLETED, Order.Status.PARTIALLY_CANCELLED)))
-                .addOrder(org.hibernate.criterion.Order.desc("updateDate"));
+                .add(interval == Candle.Interval.H1 ? Restrictions.or(Restrictions.eq("interval", interval), Restrictions.isNull("interval"))
+                        : Restrictions.eq("interval", interval))
+                .addOrder(org.hibernate.criterion.Order.desc("openTime"))
+                .setMaxResults(limit)
+                .list();
     }
 
+    // Written candles opened in range, newest first, bounds are optional
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
-    public Criteria getMarketChartData(@NonNull TradingPair tradingPair) {
+    public List<Candle> getMarketChartData(@NonNull TradingPair tradingPair, @NonNull Candle.Interval interval, Date from, Date to, int limit) {
         Session session = sessionFactory.getCurrentSession();
-        return session.createCriteria(Candle.class)
+        final Criteria criteria = session.createCriteria(Candle.class)
                 .add(Restrictions.eq("tradingPair", tradingPair))
-                .addOrder(org.hibernate.criterion.Order.desc("openTime"));
+                .add(interval == Candle.Interval.H1 ? Restrictions.or(Restrictions.eq("interval", interval), Restrictions.isNull("interval"))
+                        : Restrictions.eq("interval", interval));
+        if (from != null) criteria.add(Restrictions.ge("openTime", from));
+        if (to != null) criteria.add(Restrictions.le("openTime", to));
+        return criteria
+                .addOrder(org.hibernate.criterion.Order.desc("openTime"))
+                .setMaxResults(limit)
+                .list();
+    }
+
+    // Null if there were no trades during the current interval
+    // Instance aggregating the pair reads its open bucket, others (data nodes) add trades committed since the last write
+    // of the open candle to it, so they are not behind by the flush interval
+    @Transactional(readOnly = true)
+    public Candle getCurrentCandle(@NonNull TradingPair tradingPair, @NonNull Candle.Interval interval) {
+        final CandleAggregator aggregator = candleAggregators.get(tradingPair.getId());
+        if (aggregator != null) {
+            final CandleAggregator.Bucket bucket = aggregator.getCurrent(interval);
+            return bucket == null ? null : bucket.toCandle(new Candle(tradingPair));
+        }
+
+        Session session = sessionFactory.getCurrentSession();
+        final Date openTime = new Date(interval.getOpenTime(System.currentTimeMillis()));
+        final Candle written = (Candle) session.createCriteria(Candle.class)
+                .add(Restrictions.eq("tradingPair", tradingPair))
+                .add(Restrictions.eq("interval", interval))
+                .add(Restrictions.eq("openTime", openTime))
+                .uniqueResult();
+        final Date since = written != null && written.getUpdateTime() != null && written.getUpdateTime().after(openTime) ? written.getUpdateTime() : openTime;
+        final Object[] stats = (Object[]) session.createQuery("select min(trade.price), max(trade.price), sum(trade.amount) from Trade trade " +
+                "where trade.tradingPair = :tradingPair and trade.time > :since")
+                .setEntity("tradingPair", tradingPair)
+                .setTimestamp("since", since)
+                .uniqueResult();
+        if (stats == null || stats[0] == null) {
+            return written;
+        }
+        final BigDecimal last = (BigDecimal) session.createQuery("select trade.price from Trade trade where trade.tradingPair = :tradingPair " +
+                "and trade.time > :since order by trade.time desc, trade.id desc")
+                .setEntity("tradingPair", tradingPair)
+                .setTimestamp("since", since)
+                .setMaxResults(1)
+                .uniqueResult();
+        final Candle candle = new Candle(tradingPair);
+        candle.setInterval(interval);
+        candle.setOpenTime(openTime);
+        if (written == null) {
+            candle.setOpen((BigDecimal) session.createQuery("select trade.price from Trade trade where trade.tradingPair = :tradingPair " +
+                    "and trade.time > :since order by trade.time, trade.id")
+                    .setEntity("tradingPair", tradingPair)
+                    .setTimestamp("since", since)
+                    .setMaxResults(1)
+                    .uniqueResult());
+            candle.setHigh((BigDecimal) stats[1]);
+            candle.setLow((BigDecimal) stats[0]);
+            candle.setVolume((BigDecimal) stats[2]);
+        } else {
+            candle.setOpen(written.getOpen());
+            candle.setHigh(written.getHigh().max((BigDecimal) stats[1]));
+            candle.setLow(written.getLow().min((BigDecimal) stats[0]));
+            candle.setVolume(written.getVolume().add((BigDecimal) stats[2]));
+        }
+        candle.setClose(last);
+        return candle;
     }
 }
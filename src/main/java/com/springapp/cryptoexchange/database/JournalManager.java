@@ -0,0 +1,8 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.utils.OrderJournal;
+
+public interface JournalManager {
+    void record(OrderJournal.Event event);
+    long getAppliedSeq();
+}
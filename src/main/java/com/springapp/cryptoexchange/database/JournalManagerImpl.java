@@ -0,0 +1,303 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Currency;
+import com.springapp.cryptoexchange.database.model.FreeBalance;
+import com.springapp.cryptoexchange.database.model.JournalCheckpoint;
+import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.utils.Calculator;
+import com.springapp.cryptoexchange.utils.OrderJournal;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Matching events are fsync'ed to the journal before the matching transaction commits,
+// collected fees are applied to the database later in large batches
+@Repository
+@Profile("master")
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class JournalManagerImpl implements JournalManager {
+    static final String CHECKPOINT = "orders";
+    static final int BATCH_SIZE = 1000;
+    static final long POLL_INTERVAL = 200;
+
+    @Value
+    private static class Committed {
+        long marker;
+        List<OrderJournal.Event> events;
+    }
+
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    FeeManager feeManager;
+
+    @Autowired
+    OrderJournal orderJournal;
+
+    final BlockingQueue<Committed> writeBehindQueue = new LinkedBlockingQueue<>(); // Commit marker order
+    volatile long appliedSeq;
+    volatile boolean running;
+    Thread writer;
+
+    private class JournalSynchronization extends TransactionSynchronizationAdapter {
+        final List<OrderJournal.Event> events = new ArrayList<>();
+        long tx = 0;
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            final long lastSeq = orderJournal.append(events);
+            tx = events.get(0).getTx();
+            try {
+                orderJournal.await(lastSeq); // Durable before database commit
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing journal", e);
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(JournalManagerImpl.this);
+            if (tx == 0) {
+                return; // Nothing was written
+            }
+            if (status == STATUS_COMMITTED) {
+                committed(tx, events);
+            } else {
+                orderJournal.append(OrderJournal.Type.ABORT, tx);
+            }
+        }
+    }
+
+    public void record(@NonNull OrderJournal.Event event) {
+        Assert.isTrue(TransactionSynchronizationManager.isSynchronizationActive(), "Transaction required");
+        JournalSynchronization synchronization = (JournalSynchronization) TransactionSynchronizationManager.getResource(this);
+        if (synchronization == null) {
+            synchronization = new JournalSynchronization();
+            TransactionSynchronizationManager.bindResource(this, synchronization);
+            TransactionSynchronizationManager.registerSynchronization(synchronization);
+        }
+        synchronization.events.add(event);
+    }
+
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    private static List<OrderJournal.Event> fees(List<OrderJournal.Event> events) {
+        final List<OrderJournal.Event> fees = new ArrayList<>();
+        for (OrderJournal.Event event : events) {
+            if (event.getType() == OrderJournal.Type.FEE) fees.add(event);
+        }
+        return fees;
+    }
+
+    private void committed(long tx, List<OrderJournal.Event> events) {
+        final List<OrderJournal.Event> fees = fees(events);
+        synchronized (writeBehindQueue) { // Queue keeps the order of commit markers
+            final long marker = orderJournal.append(OrderJournal.Type.COMMIT, tx);
+            writeBehindQueue.add(new Committed(marker, fees)); // Empty ones only move the checkpoint
+        }
+    }
+
+    private JournalCheckpoint getCheckpoint(Session session) {
+        JournalCheckpoint checkpoint = (JournalCheckpoint) session.get(JournalCheckpoint.class, CHECKPOINT, LockOptions.UPGRADE);
+        if (checkpoint == null) {
+            checkpoint = new JournalCheckpoint(CHECKPOINT);
+            session.save(checkpoint);
+        }
+        return checkpoint;
+    }
+
+    private void apply(final List<Committed> batch) {
+        final long marker = batch.get(batch.size() - 1).getMarker();
+        boolean empty = true;
+        for (Committed committed : batch) empty &= committed.getEvents().isEmpty();
+        if (empty) { // Stored checkpoint may lag, replay skips these anyway
+            appliedSeq = marker;
+            return;
+        }
+
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+                final Session session = sessionFactory.getCurrentSession();
+                final Map<Long, long[]> feeSums = new HashMap<>(); // Currency => amount by fee type
+                for (Committed committed : batch) for (OrderJournal.Event event : committed.getEvents()) {
+                    long[] sums = feeSums.get(event.getTargetId());
+                    if (sums == null) {
+                        sums = new long[FreeBalance.FeeType.values().length];
+                        feeSums.put(event.getTargetId(), sums);
+                    }
+                    sums[event.getFlag()] = Calculator.addExact(sums[event.getFlag()], event.getAmount());
+                }
+
+                try {
+                    for (Map.Entry<Long, long[]> entry : feeSums.entrySet()) {
+                        final Currency currency = (Currency) session.load(Currency.class, entry.getKey());
+                        for (FreeBalance.FeeType feeType : FreeBalance.FeeType.values()) {
+                            final long amount = entry.getValue()[feeType.ordinal()];
+                            if (amount != 0) feeManager.submitCollectedFee(feeType, currency, Calculator.fromUnits(amount));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+
+                final JournalCheckpoint checkpoint = getCheckpoint(session);
+                checkpoint.setAppliedSeq(marker);
+                session.update(checkpoint);
+            }
+        });
+        appliedSeq = marker;
+    }
+
+    private void writeBehindLoop() {
+        final List<Committed> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !writeBehindQueue.isEmpty()) {
+            try {
+                final Committed first = writeBehindQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                writeBehindQueue.drainTo(batch, BATCH_SIZE - 1);
+                while (true) {
+                    try {
+                        final long start = System.nanoTime();
+                        apply(batch);
+                        if (log.isDebugEnabled()) {
+                            log.debug(String.format("Journal batch applied: %d transactions in %d ms", batch.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                        }
+                        break;
+                    } catch (Exception e) { // Batch stays in memory and in journal, retry
+                        log.error("Journal batch apply failed", e);
+                        if (!running) return;
+                        Thread.sleep(1000);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Unfinished transaction: database is the source of truth
+    static boolean isCommitted(Session session, List<OrderJournal.Event> events) {
+        for (OrderJournal.Event event : events) {
+            switch (event.getType()) {
+                case ACCEPT:
+                    return session.get(Order.class, event.getTargetId()) != null;
+                case CANCEL:
+                    final Order order = (Order) session.get(Order.class, event.getTargetId());
+                    return order != null && !order.isActual();
+            }
+        }
+        return false;
+    }
+
+    private void replay() throws Exception {
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+                appliedSeq = getCheckpoint(sessionFactory.getCurrentSession()).getAppliedSeq();
+            }
+        });
+
+        final Map<Long, List<OrderJournal.Event>> unfinished = new LinkedHashMap<>();
+        final List<Committed> unapplied = new ArrayList<>();
+        orderJournal.replay(new OrderJournal.Visitor() {
+            @Override
+            public void visit(OrderJournal.Event event) throws Exception {
+                switch (event.getType()) {
+                    case COMMIT:
+                        final List<OrderJournal.Event> events = unfinished.remove(event.getTx());
+                        if (event.getSeq() > appliedSeq && events != null) {
+                            final List<OrderJournal.Event> fees = fees(events);
+                            if (!fees.isEmpty()) unapplied.add(new Committed(event.getSeq(), fees));
+                        }
+                        break;
+                    case ABORT:
+                        unfinished.remove(event.getTx());
+                        break;
+                    default:
+                        List<OrderJournal.Event> txEvents = unfinished.get(event.getTx());
+                        if (txEvents == null) {
+                            txEvents = new ArrayList<>();
+                            unfinished.put(event.getTx(), txEvents);
+                        }
+                        txEvents.add(event);
+                }
+            }
+        });
+        writeBehindQueue.addAll(unapplied);
+
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+                final Session session = sessionFactory.getCurrentSession();
+                for (Map.Entry<Long, List<OrderJournal.Event>> entry : unfinished.entrySet()) {
+                    if (isCommitted(session, entry.getValue())) {
+                        committed(entry.getKey(), entry.getValue());
+                    } else {
+                        orderJournal.append(OrderJournal.Type.ABORT, entry.getKey());
+                    }
+                }
+            }
+        });
+        orderJournal.await(orderJournal.getLastSeq()); // Markers are visible to next replays
+        log.info(String.format("Journal replayed: %d unapplied, %d unfinished transactions", unapplied.size(), unfinished.size()));
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        replay();
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehindLoop();
+            }
+        }, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false; // Drains the queue
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+}
@@ -1,9 +1,12 @@
 package com.springapp.cryptoexchange.database;
 
+import com.springapp.cryptoexchange.database.model.Account;
 import com.springapp.cryptoexchange.database.model.Order;
 import com.springapp.cryptoexchange.database.model.TradingPair;
 import org.hibernate.Criteria;
 
+import java.util.List;
+
 public interface MarketManager {
     public static class MarketException extends Exception {
         public MarketException() {
@@ -27,7 +30,10 @@ public interface MarketManager {
         }
     }
     public Order executeOrder(Order newOrder) throws Exception;
+    public List<Exception> executeOrders(List<Order> orders) throws Exception; // Rejection reason per order, null if executed
     public void cancelOrder(Order order) throws Exception;
+    public int cancelOrders(Account account, TradingPair tradingPair, Order.Type type) throws Exception; // Null matches any
+    public List<Order> replaceOrders(Account account, TradingPair tradingPair, List<Order> newOrders) throws Exception;
     public Order getOrder(long orderId);
     public Criteria getOpenOrders(TradingPair tradingPair, Order.Type orderType);
 }
@@ -1,31 +1,42 @@
 package com.springapp.cryptoexchange.database;
 
 import com.springapp.cryptoexchange.database.model.*;
+import com.springapp.cryptoexchange.utils.AccountStream;
 import com.springapp.cryptoexchange.utils.CacheCleaner;
 import com.springapp.cryptoexchange.utils.Calculator;
+import com.springapp.cryptoexchange.utils.MarketStream;
+import com.springapp.cryptoexchange.utils.MatchingSequencer;
+import com.springapp.cryptoexchange.utils.OrderJournal;
 import lombok.NonNull;
 import lombok.experimental.NonFinal;
 import lombok.extern.apachecommons.CommonsLog;
 import org.hibernate.Criteria;
-import org.hibernate.FetchMode;
+import org.hibernate.LockOptions;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
 import org.joda.time.DateTime;
-import org.joda.time.Period;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Caching;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 
 import java.math.BigDecimal;
-import java.util.Arrays;
-import java.util.List;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 
@@ -53,12 +64,210 @@ public class MarketManagerImpl implements MarketManager {
     @Autowired
     CacheCleaner cacheCleaner;
 
+    @Autowired(required = false) // Master only
+    OrderBookManager orderBookManager;
+
+    @Autowired(required = false) // Master only
+    JournalManager journalManager;
+
+    @Autowired
+    MatchingSequencer matchingSequencer;
+
+    @Autowired
+    @Lazy
+    MarketStream marketStream;
+
+    @Autowired
+    @Lazy
+    AccountStream accountStream;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    // Pair writes are ordered by the sequencer, shared wallet rows are locked explicitly
+    static final TransactionDefinition matchingTransaction;
+    static {
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRED);
+        definition.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        matchingTransaction = definition;
+    }
+
+    static final int DEADLOCK_RETRIES = 3;
+
+    // Fields of a new order changed by matching, restored before the task is run again
+    private static final class OrderState {
+        final Order order;
+        final long id;
+        final Order.Status status;
+        final BigDecimal price, completedAmount, total;
+        final Date updateDate, closeDate;
+        final VirtualWallet sourceWallet, destWallet;
+
+        OrderState(Order order) {
+            this.order = order;
+            this.id = order.getId();
+            this.status = order.getStatus();
+            this.price = order.getPrice();
+            this.completedAmount = order.getCompletedAmount();
+            this.total = order.getTotal();
+            this.updateDate = order.getUpdateDate();
+            this.closeDate = order.getCloseDate();
+            this.sourceWallet = order.getSourceWallet();
+            this.destWallet = order.getDestWallet();
+        }
+
+        void restore() {
+            order.setId(id);
+            order.setStatus(status);
+            order.setPrice(price);
+            order.setCompletedAmount(completedAmount);
+            order.setTotal(total);
+            order.setUpdateDate(updateDate);
+            order.setCloseDate(closeDate);
+            order.setSourceWallet(sourceWallet);
+            order.setDestWallet(destWallet);
+        }
+    }
+
+    // Deadlock or serialization failure: the database rolled the transaction back and it can be run again
+    private static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                final String state = ((SQLException) cause).getSQLState();
+                if ("40P01".equals(state) || "40001".equals(state)) return true;
+            }
+        }
+        return false;
+    }
+
+    private <T> T executeInTransaction(TransactionStatus status, Callable<T> task) throws Exception {
+        final T result;
+        try {
+            result = task.call();
+        } catch (Throwable e) {
+            transactionManager.rollback(status);
+            throw e;
+        }
+        transactionManager.commit(status);
+        return result;
+    }
+
+    private <T> T executeSequenced(@NonNull TradingPair tradingPair, final Callable<T> task) throws Exception {
+        return executeSequenced(tradingPair, task, Collections.<Order>emptyList());
+    }
+
+    // Makers' wallets are locked as they are matched, so pairs sharing accounts may deadlock: the loser is retried,
+    // new orders passed are restored first and the book is reloaded by the rollback
+    // A task joining an outer transaction is not retried, the outer one is already marked rollback-only
+    private <T> T executeSequenced(@NonNull final TradingPair tradingPair, final Callable<T> task, @NonNull Collection<Order> newOrders) throws Exception {
+        final List<OrderState> states = new ArrayList<>(newOrders.size());
+        for (Order newOrder : newOrders) states.add(new OrderState(newOrder));
+        return matchingSequencer.execute(tradingPair.getId(), new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                for (int attempt = 1; ; attempt++) {
+                    final TransactionStatus status = transactionManager.getTransaction(matchingTransaction);
+                    try {
+                        return executeInTransaction(status, task);
+                    } catch (Exception e) {
+                        if (!status.isNewTransaction() || attempt >= DEADLOCK_RETRIES || !isRetryable(e)) throw e;
+                        log.warn(String.format("Matching transaction of %s rolled back by database, retrying (%d): %s", tradingPair, attempt, e));
+                        for (OrderState state : states) state.restore();
+                    }
+                }
+            }
+        });
+    }
+
+    private static VirtualWallet lockWallet(Session session, VirtualWallet wallet) {
+        VirtualWallet locked = (VirtualWallet) session.get(VirtualWallet.class, wallet.getId(), LockOptions.UPGRADE);
+        Assert.notNull(locked, "Wallet not found");
+        return locked;
+    }
+
+    // Taker wallets are locked in id order by one query, so takers sharing wallets wait for each other instead of deadlocking
+    @SuppressWarnings("unchecked")
+    private static void lockWallets(Session session, Collection<Order> orders) {
+        final Set<Long> ids = new TreeSet<>();
+        for (Order order : orders) {
+            if (order.getSourceWallet() != null) ids.add(order.getSourceWallet().getId());
+            if (order.getDestWallet() != null) ids.add(order.getDestWallet().getId());
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        final Map<Long, VirtualWallet> locked = new HashMap<>();
+        for (VirtualWallet wallet : (List<VirtualWallet>) session.createQuery("from VirtualWallet wallet where wallet.id in (:ids) order by wallet.id")
+                .setParameterList("ids", ids)
+                .setLockMode("wallet", org.hibernate.LockMode.PESSIMISTIC_WRITE)
+                .list()) {
+            locked.put(wallet.getId(), wallet);
+        }
+        for (Order order : orders) { // Missing wallets are left null, see hasWallets
+            if (order.getSourceWallet() != null) order.setSourceWallet(locked.get(order.getSourceWallet().getId()));
+            if (order.getDestWallet() != null) order.setDestWallet(locked.get(order.getDestWallet().getId()));
+        }
+    }
+
+    // Both wallets found and owned by the order's account
+    private static boolean hasWallets(Order order) {
+        return order.getSourceWallet() != null && order.getDestWallet() != null && order.getAccount() != null
+                && order.getAccount().equals(order.getSourceWallet().getAccount()) && order.getAccount().equals(order.getDestWallet().getAccount());
+    }
+
+    private void journal(OrderJournal.Type type, int flag, long tradingPairId, long targetId, long counterId, long amount, long price) {
+        if (journalManager != null) {
+            journalManager.record(new OrderJournal.Event(type, flag, tradingPairId, targetId, counterId, amount, price));
+        }
+    }
+
+    private void journalBalance(TradingPair tradingPair, VirtualWallet wallet, long delta) {
+        journal(OrderJournal.Type.BALANCE, 0, tradingPair.getId(), wallet.getId(), 0, delta, 0);
+        accountStream.balanceChanged(wallet, delta);
+    }
+
+    private void submitCollectedFee(TradingPair tradingPair, Currency currency, long fee) throws Exception {
+        if (fee == 0) {
+            return;
+        }
+        if (journalManager != null) { // Written behind, free balance row is shared by all pairs
+            journal(OrderJournal.Type.FEE, FreeBalance.FeeType.TRADING.ordinal(), tradingPair.getId(), currency.getId(), 0, fee, 0);
+        } else {
+            feeManager.submitCollectedFee(FreeBalance.FeeType.TRADING, currency, Calculator.fromUnits(fee));
+        }
+    }
+
+    private OrderBook getOrderBook(TradingPair tradingPair) {
+        Assert.notNull(orderBookManager, "Order book is not available on this node");
+        return orderBookManager.getOrderBook(tradingPair);
+    }
+
+    private void reloadOnRollback(final TradingPair tradingPair) { // In-memory book must not keep uncommitted changes
+        final String resource = "reloadOnRollback/" + tradingPair.getId(); // Once per transaction
+        if (TransactionSynchronizationManager.isSynchronizationActive() && !TransactionSynchronizationManager.hasResource(resource)) {
+            TransactionSynchronizationManager.bindResource(resource, Boolean.TRUE);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(resource);
+                    if (status != STATUS_COMMITTED) {
+                        log.warn(String.format("Transaction rolled back, reloading order book: %s", tradingPair));
+                        orderBookManager.reloadOrderBook(tradingPair);
+                    }
+                }
+            });
+        }
+    }
+
     private void returnUnusedFunds(@NonNull Order order) {
         Assert.isTrue(!order.isActual(), "Order must be closed");
-        BigDecimal returnAmount = Calculator.totalRequired(order.getType(), order.getAmount(), order.getPrice()).subtract(order.getTotal());
-        if (returnAmount.compareTo(BigDecimal.ZERO) != 0) {
+        final long returnUnits = Calculator.totalRequired(order.getType(), Calculator.toUnits(order.getAmount()), Calculator.toUnits(order.getPrice()))
+                - Calculator.toUnits(order.getTotal());
+        if (returnUnits != 0) {
+            final BigDecimal returnAmount = Calculator.fromUnits(returnUnits);
             VirtualWallet wallet = order.getSourceWallet();
             wallet.addBalance(returnAmount);
+            journalBalance(order.getTradingPair(), wallet, returnUnits);
             if(log.isDebugEnabled()) {
                 log.debug(String.format("Returned unspent money: %s %s => %s (%s)", returnAmount, wallet.getCurrency().getCode(), wallet, order));
             }
@@ -66,8 +275,9 @@ public class MarketManagerImpl implements MarketManager {
         }
     }
 
+    // Amount, price and fee are fixed-point units, converted to BigDecimal only when written to entities
     @SuppressWarnings("all")
-    private void remapFunds(@NonFinal Order firstOrder, @NonFinal Order secondOrder, final BigDecimal amount) throws Exception {
+    private void remapFunds(@NonFinal Order firstOrder, @NonFinal Order secondOrder, final Order.Type takerType, final long amount, final long price, final long pairTradingFee) throws Exception {
         Session session = sessionFactory.getCurrentSession();
         TradingPair tradingPair = firstOrder.getTradingPair();
         Assert.isTrue(
@@ -85,30 +295,37 @@ public class MarketManagerImpl implements MarketManager {
             log.debug(String.format("Zero-fee trade: %s => %s", firstOrder, secondOrder));
         }
 
-        BigDecimal price = firstOrder.getPrice(),
-                tradingFee = zeroFee ? BigDecimal.ZERO : tradingPair.getTradingFee(),
+        final long tradingFee = zeroFee ? 0 : pairTradingFee,
                 total = Calculator.buyTotal(amount, price),
-                firstCurrencySend = Calculator.withoutFee(amount, tradingFee),
-                secondCurrencySend = Calculator.withoutFee(total, tradingFee);
+                firstCurrencyFee = Calculator.fee(amount, tradingFee),
+                secondCurrencyFee = Calculator.fee(total, tradingFee);
 
         Currency firstCurrency = tradingPair.getFirstCurrency(), secondCurrency = tradingPair.getSecondCurrency();
         Assert.isTrue(firstCurrency != null && secondCurrency != null, "Currency not found");
-        log.info(String.format("Trade occured: %s %s @ %s %s (total %s %s)", amount, firstCurrency.getCode(), price, secondCurrency.getCode(), total, secondCurrency.getCode()));
+
+        final BigDecimal tradeAmount = Calculator.fromUnits(amount), tradePrice = Calculator.fromUnits(price), tradeTotal = Calculator.fromUnits(total),
+                firstCurrencySend = Calculator.fromUnits(amount - firstCurrencyFee),
+                secondCurrencySend = Calculator.fromUnits(total - secondCurrencyFee);
+        log.info(String.format("Trade occured: %s %s @ %s %s (total %s %s)", tradeAmount, firstCurrency.getCode(), tradePrice, secondCurrency.getCode(), tradeTotal, secondCurrency.getCode()));
 
 
         // Updating orders:
-        firstOrder.addTotal(amount);
-        firstOrder.addCompletedAmount(amount);
-        secondOrder.addTotal(total);
-        secondOrder.addCompletedAmount(amount);
+        firstOrder.addTotal(tradeAmount);
+        firstOrder.addCompletedAmount(tradeAmount);
+        secondOrder.addTotal(tradeTotal);
+        secondOrder.addCompletedAmount(tradeAmount);
         firstOrder.updateCompletionStatus();
         secondOrder.updateCompletionStatus();
+        Trade trade = new Trade(firstOrder, secondOrder, takerType, tradePrice, tradeAmount, tradeTotal);
+        session.save(trade);
+        marketStream.addTrade(trade);
+        accountStream.tradeExecuted(trade, firstOrder, secondOrder);
+        accountStream.orderChanged(firstOrder);
+        accountStream.orderChanged(secondOrder);
 
 
         // Updating market info:
-        if(firstOrder.getStatus() == Order.Status.COMPLETED || secondOrder.getStatus() == Order.Status.COMPLETED) {
-            historyManager.updateMarketInfo(tradingPair, price, amount);
-        }
+        historyManager.updateMarketInfo(tradingPair, tradePrice, tradeAmount);
 
         // Updating balances:
         VirtualWallet firstDest = firstOrder.getDestWallet(), secondDest = secondOrder.getDestWallet();
@@ -117,11 +334,13 @@ public class MarketManagerImpl implements MarketManager {
         Assert.isTrue(firstDest.getCurrency().equals(secondCurrency));
         if(log.isDebugEnabled()) log.debug(String.format("%s +%s %s", firstDest, secondCurrencySend, secondCurrency.getCode()));
         firstDest.addBalance(secondCurrencySend);
+        journalBalance(tradingPair, firstDest, total - secondCurrencyFee);
 
         // secondDest - buyer, receives first currency from pair
         Assert.isTrue(secondDest.getCurrency().equals(firstCurrency));
         if(log.isDebugEnabled()) log.debug(String.format("%s +%s %s", secondDest, firstCurrencySend, firstCurrency.getCode()));
         secondDest.addBalance(firstCurrencySend);
+        journalBalance(tradingPair, secondDest, amount - firstCurrencyFee);
 
         if(firstOrder.getStatus() == Order.Status.COMPLETED) {
             returnUnusedFunds(firstOrder);
@@ -132,9 +351,9 @@ public class MarketManagerImpl implements MarketManager {
 
 
         // Collected fee:
-        if (tradingFee.compareTo(BigDecimal.ZERO) > 0) {
-            feeManager.submitCollectedFee(FreeBalance.FeeType.TRADING, tradingPair.getFirstCurrency(), Calculator.fee(amount, tradingFee));
-            feeManager.submitCollectedFee(FreeBalance.FeeType.TRADING, tradingPair.getSecondCurrency(), Calculator.fee(total, tradingFee));
+        if (tradingFee > 0) {
+            submitCollectedFee(tradingPair, firstCurrency, firstCurrencyFee);
+            submitCollectedFee(tradingPair, secondCurrency, secondCurrencyFee);
         }
 
         // Uncache all:
@@ -146,39 +365,245 @@ public class MarketManagerImpl implements MarketManager {
         return (Order) sessionFactory.getCurrentSession().get(Order.class, orderId);
     }
 
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE)
+    private void cancelOrderSequenced(@NonNull Order order) throws Exception {
+        Session session = sessionFactory.getCurrentSession();
+        Assert.isTrue(order.isActual(), "Order already closed");
+        log.info(String.format("cancelOrder => %s", order));
+        final OrderBook orderBook = getOrderBook(order.getTradingPair());
+        synchronized (orderBook) {
+            reloadOnRollback(order.getTradingPair());
+            order.setSourceWallet(lockWallet(session, order.getSourceWallet()));
+            order.cancel(); // Change order status
+            returnUnusedFunds(order); // Return money
+            session.update(order);
+            orderBook.remove(order.getId());
+            journal(OrderJournal.Type.CANCEL, 0, order.getTradingPair().getId(), order.getId(), 0, 0, 0);
+            accountStream.orderChanged(order);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Caching(evict = {
             @CacheEvict(value = "getAccountOrdersByPair", key = "#order.account.login + '/' + #order.tradingPair.id"),
             @CacheEvict(value = "getAccountOrders", key = "#order.account.login"),
-            @CacheEvict(value = "getAccountBalances", key = "#order.account.login"),
-            @CacheEvict(value = "getMarketDepth", key = "#order.tradingPair.id")
+            @CacheEvict(value = "getAccountBalances", key = "#order.account.login")
     })
-    public void cancelOrder(@NonNull Order order) throws Exception {
-        Session session = sessionFactory.getCurrentSession();
-        Assert.isTrue(order.isActual(), "Order already closed");
-        log.info(String.format("cancelOrder => %s", order));
-        order.cancel(); // Change order status
-        returnUnusedFunds(order); // Return money
-        session.update(order);
+    public void cancelOrder(@NonNull final Order order) throws Exception {
+        executeSequenced(order.getTradingPair(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final Order persistent = (Order) sessionFactory.getCurrentSession().get(Order.class, order.getId());
+                Assert.notNull(persistent, "Order not found");
+                cancelOrderSequenced(persistent);
+                cacheCleaner.marketDepthEvict(persistent.getTradingPair().getId());
+                order.setStatus(persistent.getStatus());
+                return null;
+            }
+        });
+    }
+
+    private static final List<Order.Status> ACTUAL_STATUSES = Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED);
+    private static final int IN_LIMIT = 1000;
+
+    private static String cancelCondition(Account account, Order.Type type) {
+        return "ord.status in (:statuses)" + (account != null ? " and ord.account = :account" : "") + (type != null ? " and ord.type = :type" : "");
+    }
+
+    private static org.hibernate.Query setCancelParameters(org.hibernate.Query query, Account account, Order.Type type) {
+        query.setParameterList("statuses", ACTUAL_STATUSES);
+        if (account != null) query.setParameter("account", account);
+        if (type != null) query.setParameter("type", type);
+        return query;
+    }
+
+    private static void addDelta(Map<Long, Long> walletDeltas, long walletId, long delta) {
+        final Long current = walletDeltas.get(walletId);
+        walletDeltas.put(walletId, Calculator.addExact(current == null ? 0 : current, delta));
+    }
+
+    // Net balance change per wallet, all wallets are loaded and locked by one query
+    @SuppressWarnings("unchecked")
+    private void applyWalletDeltas(Session session, TradingPair tradingPair, Map<Long, Long> walletDeltas) {
+        if (walletDeltas.isEmpty()) {
+            return;
+        }
+        final List<VirtualWallet> wallets = session.createQuery("from VirtualWallet wallet where wallet.id in (:ids) order by wallet.id")
+                .setParameterList("ids", walletDeltas.keySet())
+                .setLockMode("wallet", org.hibernate.LockMode.PESSIMISTIC_WRITE)
+                .list();
+        for (VirtualWallet wallet : wallets) {
+            final long delta = walletDeltas.get(wallet.getId());
+            if (delta != 0) addBalance(tradingPair, wallet, delta);
+        }
+    }
+
+    // Refunds are summed into wallet deltas, statuses changed by two bulk updates
+    @SuppressWarnings("unchecked")
+    private int cancelOrdersSequenced(TradingPair tradingPair, Account account, Order.Type type, Set<String> logins, Map<Long, Long> walletDeltas) {
+        final Session session = sessionFactory.getCurrentSession();
+        final List<Object[]> rows = setCancelParameters(session.createQuery("select ord.id, ord.sourceWallet.id, ord.account.login, " +
+                "ord.type, ord.amount, ord.price, ord.total, ord.status from Order ord where ord.tradingPair.id = :tradingPairId and " + cancelCondition(account, type)), account, type)
+                .setLong("tradingPairId", tradingPair.getId())
+                .list();
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        final List<Long> open = new ArrayList<>(), partiallyCompleted = new ArrayList<>();
+        final Map<String, List<Long>> accountOrders = new HashMap<>();
+        for (Object[] row : rows) {
+            final long refund = Calculator.totalRequired((Order.Type) row[3], Calculator.toUnits((BigDecimal) row[4]), Calculator.toUnits((BigDecimal) row[5]))
+                    - Calculator.toUnits((BigDecimal) row[6]);
+            addDelta(walletDeltas, (Long) row[1], refund);
+            (row[7] == Order.Status.OPEN ? open : partiallyCompleted).add((Long) row[0]);
+            logins.add((String) row[2]);
+            List<Long> ids = accountOrders.get(row[2]);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                accountOrders.put((String) row[2], ids);
+            }
+            ids.add((Long) row[0]);
+        }
+
+        final OrderBook orderBook = getOrderBook(tradingPair);
+        synchronized (orderBook) {
+            reloadOnRollback(tradingPair);
+            final Date now = new Date();
+            for (int i = 0; i < 2; i++) {
+                final List<Long> ids = i == 0 ? open : partiallyCompleted;
+                for (int from = 0; from < ids.size(); from += IN_LIMIT) {
+                    session.createQuery("update versioned Order set status = :status, closeDate = :now where id in (:ids) and status = :current")
+                            .setParameter("status", i == 0 ? Order.Status.CANCELLED : Order.Status.PARTIALLY_CANCELLED)
+                            .setParameter("current", i == 0 ? Order.Status.OPEN : Order.Status.PARTIALLY_COMPLETED)
+                            .setTimestamp("now", now)
+                            .setParameterList("ids", ids.subList(from, Math.min(ids.size(), from + IN_LIMIT)))
+                            .executeUpdate();
+                }
+            }
+
+            for (Object[] row : rows) {
+                orderBook.remove((Long) row[0]);
+                journal(OrderJournal.Type.CANCEL, 0, tradingPair.getId(), (Long) row[0], 0, 0, 0);
+            }
+            for (Map.Entry<String, List<Long>> entry : accountOrders.entrySet()) accountStream.ordersChanged(entry.getKey(), entry.getValue());
+        }
+        log.info(String.format("Mass cancel: %d orders of %s cancelled", rows.size(), tradingPair));
+        return rows.size();
+    }
+
+    @Transactional(readOnly = true) // Each pair is cancelled by its matching thread
+    @SuppressWarnings("unchecked")
+    public int cancelOrders(final Account account, final TradingPair tradingPair, final Order.Type type) throws Exception {
+        Assert.isTrue(account != null || tradingPair != null, "Account or trading pair required");
+        final List<TradingPair> tradingPairs = new ArrayList<>();
+        if (tradingPair != null) {
+            tradingPairs.add(tradingPair);
+        } else {
+            final List<Long> ids = setCancelParameters(sessionFactory.getCurrentSession()
+                    .createQuery("select distinct ord.tradingPair.id from Order ord where " + cancelCondition(account, type)), account, type)
+                    .list();
+            for (long id : ids) tradingPairs.add(settingsManager.getTradingPair(id));
+        }
+
+        final Set<String> logins = new HashSet<>();
+        final Set<Long> tradingPairIds = new HashSet<>();
+        int count = 0;
+        try {
+            for (final TradingPair pair : tradingPairs) {
+                count += executeSequenced(pair, new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final Map<Long, Long> refunds = new HashMap<>();
+                        final int cancelled = cancelOrdersSequenced(pair, account, type, logins, refunds);
+                        applyWalletDeltas(sessionFactory.getCurrentSession(), pair, refunds);
+                        return cancelled;
+                    }
+                });
+                tradingPairIds.add(pair.getId());
+            }
+        } finally {
+            cacheCleaner.ordersEvict(logins, tradingPairIds);
+        }
+        return count;
+    }
+
+    // Old quotes are cancelled and new ones placed in one transaction, each wallet gets one net balance change
+    private List<Order> replaceOrdersSequenced(Account account, TradingPair tradingPair, List<Order> newOrders, Set<String> logins) throws Exception {
+        final Session session = sessionFactory.getCurrentSession();
+        for (Order newOrder : newOrders) {
+            Assert.isTrue(newOrder.getTradingPair() != null && newOrder.getTradingPair().getId() == tradingPair.getId()
+                    && account.equals(newOrder.getAccount()) && newOrder.getExecution() == Order.Execution.LIMIT, "Invalid parameters");
+            checkOrder(session, newOrder);
+        }
+
+        final Map<Long, Long> walletDeltas = new HashMap<>();
+        final int cancelled = cancelOrdersSequenced(tradingPair, account, null, logins, walletDeltas);
+
+        final Map<Long, VirtualWallet> sourceWallets = new HashMap<>();
+        lockWallets(session, newOrders);
+        for (Order newOrder : newOrders) {
+            Assert.isTrue(hasWallets(newOrder), "Wallet not found");
+            sourceWallets.put(newOrder.getSourceWallet().getId(), newOrder.getSourceWallet());
+            addDelta(walletDeltas, newOrder.getSourceWallet().getId(), -requiredFunds(newOrder));
+        }
+        for (VirtualWallet wallet : sourceWallets.values()) {
+            final long balance = Calculator.toUnits(accountManager.getVirtualWalletBalance(wallet));
+            if (Calculator.addExact(balance, walletDeltas.get(wallet.getId())) < 0) {
+                throw new MarketException("Insufficient funds");
+            }
+        }
+
+        final OrderBook orderBook = getOrderBook(tradingPair);
+        synchronized (orderBook) {
+            reloadOnRollback(tradingPair); // Cancel registers it only if something was cancelled
+            applyWalletDeltas(session, tradingPair, walletDeltas);
+            for (Order newOrder : newOrders) matchOrder(session, newOrder, orderBook);
+        }
+        log.info(String.format("Quotes replaced: %d cancelled, %d placed (%s, %s)", cancelled, newOrders.size(), account.getLogin(), tradingPair));
+        return newOrders;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Order> replaceOrders(@NonNull final Account account, @NonNull final TradingPair tradingPair, @NonNull final List<Order> newOrders) throws Exception {
+        final Set<String> logins = new HashSet<>();
+        logins.add(account.getLogin());
+        try {
+            return executeSequenced(tradingPair, new Callable<List<Order>>() {
+                @Override
+                public List<Order> call() throws Exception {
+                    return replaceOrdersSequenced(account, tradingPair, newOrders, logins);
+                }
+            }, newOrders);
+        } finally {
+            cacheCleaner.ordersEvict(logins, Collections.singleton(tradingPair.getId()));
+        }
     }
 
     @Caching(evict = {
-            @CacheEvict(value = "getMarketDepth", key = "#newOrder.tradingPair.id"),
             @CacheEvict(value = "getMarketHistory", key = "#newOrder.tradingPair.id"),
             @CacheEvict(value = "getAccountOrdersByPair", key = "#newOrder.account.login + '/' + #newOrder.tradingPair.id"),
             @CacheEvict(value = "getAccountOrders", key = "#newOrder.account.login"),
             @CacheEvict(value = "getAccountBalances", key = "#newOrder.account.login")
     })
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE)
     @SuppressWarnings("unchecked")
-    public Order executeOrder(@NonNull Order newOrder) throws Exception {
-        final long start = System.nanoTime();
+    public Order executeOrder(@NonNull final Order newOrder) throws Exception {
+        return executeSequenced(newOrder.getTradingPair(), new Callable<Order>() {
+            @Override
+            public Order call() throws Exception {
+                cacheCleaner.marketDepthEvict(newOrder.getTradingPair().getId());
+                return executeOrderSequenced(newOrder);
+            }
+        }, Collections.singletonList(newOrder));
+    }
+
+    // Throws before anything is changed
+    private void checkOrder(Session session, @NonNull Order newOrder) throws Exception {
+        Assert.isTrue(newOrder.getTradingPair() != null && newOrder.getAmount() != null && newOrder.getPrice() != null, "Invalid parameters");
+        newOrder.setTradingPair((TradingPair) session.get(TradingPair.class, newOrder.getTradingPair().getId())); // Actual settings
         // Normalizing:
         newOrder.setAmount(newOrder.getAmount().setScale(8, BigDecimal.ROUND_FLOOR));
         newOrder.setPrice(newOrder.getPrice().setScale(8, BigDecimal.ROUND_FLOOR));
 
-        final Order.Type orderType = newOrder.getType();
         final TradingPair tradingPair = newOrder.getTradingPair();
 
         // Checking input parameters:
@@ -188,17 +613,14 @@ public class MarketManagerImpl implements MarketManager {
                 // Checking trading pair:
                 && tradingPair != null && tradingPair.isEnabled()
                 // Checking price and amount:
-                && newOrder.getPrice().compareTo(BigDecimal.ZERO) > 0
+                && (newOrder.getPrice().compareTo(BigDecimal.ZERO) > 0 || newOrder.getExecution() == Order.Execution.MARKET)
                 && newOrder.getAmount().compareTo(BigDecimal.ZERO) > 0, "Invalid parameters");
 
         if (newOrder.getAmount().compareTo(tradingPair.getMinimalTradeAmount()) < 0) {
             throw new MarketException(String.format("Minimal trading amount is %s", tradingPair.getMinimalTradeAmount()));
         }
 
-        final Session session = sessionFactory.getCurrentSession();
-        log.info(String.format("executeOrder => %s", newOrder));
-
-        switch (orderType) {
+        switch (newOrder.getType()) {
             case BUY:
                 Assert.isTrue(newOrder.getSourceWallet().getCurrency().equals(tradingPair.getSecondCurrency()) &&
                     newOrder.getDestWallet().getCurrency().equals(tradingPair.getFirstCurrency()), "Invalid currencies");
@@ -209,52 +631,214 @@ public class MarketManagerImpl implements MarketManager {
                 break;
         }
 
-        VirtualWallet virtualWalletSource = newOrder.getSourceWallet();
-        final BigDecimal balance = accountManager.getVirtualWalletBalance(virtualWalletSource),
-                remainingAmount = newOrder.getRemainingAmount(),
-                required = Calculator.totalRequired(orderType, remainingAmount, newOrder.getPrice());
-
-        if(balance.compareTo(required) < 0) {
-            throw new MarketException("Insufficient funds");
-        } else {
-            virtualWalletSource.addBalance(required.negate()); // Lock funds
+        final OrderBook orderBook = getOrderBook(tradingPair);
+        final long amount = Calculator.toUnits(newOrder.getAmount());
+        synchronized (orderBook) {
+            switch (newOrder.getExecution()) {
+                case MARKET: // Limit price is the worst price reached in book
+                    final long sweepPrice = orderBook.getSweepPrice(newOrder.getType(), amount);
+                    if (sweepPrice == 0) {
+                        throw new MarketException("No orders to match");
+                    }
+                    newOrder.setPrice(Calculator.fromUnits(sweepPrice));
+                    break;
+                case FOK: // Rejected before anything is written, matching can not stop at a stale entry
+                    if (getLiveLiquidity(session, orderBook, newOrder.getType(), Calculator.toUnits(newOrder.getPrice()), amount) < amount) {
+                        throw new MarketException("Not enough liquidity to fill the order");
+                    }
+                    break;
+            }
         }
+    }
 
-        // Retrieving relevant orders:
-        List<Order> orders = session.createCriteria(Order.class)
-                .setFetchSize(20)
-                .setFetchMode("tradingPair", FetchMode.JOIN)
-                .setFetchMode("sourceWallet", FetchMode.JOIN)
-                .setFetchMode("destWallet", FetchMode.JOIN)
-                .setFetchMode("account", FetchMode.JOIN)
-                .addOrder(orderType == Order.Type.BUY ? org.hibernate.criterion.Order.asc("price") : org.hibernate.criterion.Order.desc("price"))
-                .addOrder(org.hibernate.criterion.Order.asc("openDate"))
-                .add(Restrictions.eq("tradingPair", tradingPair))
-                .add(orderType.equals(Order.Type.BUY) ? Restrictions.le("price", newOrder.getPrice()) : Restrictions.ge("price", newOrder.getPrice()))
-                .add(Restrictions.eq("type", orderType.equals(Order.Type.BUY) ? Order.Type.SELL : Order.Type.BUY))
-                .add(Restrictions.in("status", Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED)))
-                .list();
+    // Book liquidity of actual orders only, stale entries are removed from the book
+    private static long getLiveLiquidity(Session session, OrderBook orderBook, Order.Type takerType, long limitPrice, long amount) {
+        boolean stale;
+        long total;
+        do {
+            stale = false;
+            total = 0;
+            for (OrderBook.Entry entry : orderBook.getMatching(takerType, limitPrice, amount)) {
+                final Order order = (Order) session.get(Order.class, entry.getOrderId());
+                if (order == null || !order.isActual()) {
+                    log.warn(String.format("Stale order book entry removed: %s", entry));
+                    orderBook.remove(entry.getOrderId());
+                    stale = true;
+                } else {
+                    total += entry.getRemainingAmount();
+                }
+            }
+        } while (stale && total < amount); // Entries behind the stale ones
+        return total;
+    }
+
+    private static long requiredFunds(Order newOrder) {
+        return Calculator.totalRequired(newOrder.getType(), newOrder.getRemainingUnits(), Calculator.toUnits(newOrder.getPrice()));
+    }
+
+    private void addBalance(TradingPair tradingPair, VirtualWallet wallet, long delta) {
+        wallet.addBalance(Calculator.fromUnits(delta));
+        journalBalance(tradingPair, wallet, delta);
+    }
+
+    // Every fill is priced by the resting order, taker price is only a limit (sweep bound for market orders)
+    static long tradePrice(OrderBook.Entry maker) {
+        return maker.getPrice();
+    }
 
-        // Performing trade:
-        for(Order order : orders) {
-            BigDecimal orderRemainingAmount = order.getRemainingAmount();
-            final BigDecimal tradeAmount = orderRemainingAmount.compareTo(remainingAmount) >= 0 ? remainingAmount : orderRemainingAmount;
+    // Funds must be locked, wallets locked by caller
+    private void matchOrder(Session session, @NonNull Order newOrder, OrderBook orderBook) throws Exception {
+        final Order.Type orderType = newOrder.getType();
+        final TradingPair tradingPair = newOrder.getTradingPair();
+        final long price = Calculator.toUnits(newOrder.getPrice()), tradingFee = Calculator.toUnits(tradingPair.getTradingFee());
+        long remainingAmount = newOrder.getRemainingUnits();
+
+        session.save(newOrder); // Journal needs the id
+        journal(OrderJournal.Type.ACCEPT, orderType.ordinal(), tradingPair.getId(), newOrder.getId(), newOrder.getOpenDate().getTime(), remainingAmount, price);
+
+        // Performing trade against resting orders, best price first:
+        final Order.Type oppositeType = OrderBook.opposite(orderType);
+        OrderBook.Entry entry;
+        while(remainingAmount > 0 && (entry = orderBook.getBest(oppositeType)) != null
+                && OrderBook.crosses(entry, orderType, price)) {
+            Order order = (Order) session.get(Order.class, entry.getOrderId());
+            if(order == null || !order.isActual()) {
+                log.warn(String.format("Stale order book entry removed: %s", entry));
+                orderBook.remove(entry.getOrderId());
+                continue;
+            }
+            order.setSourceWallet(lockWallet(session, order.getSourceWallet()));
+            order.setDestWallet(lockWallet(session, order.getDestWallet()));
 
+            final long tradeAmount = Math.min(entry.getRemainingAmount(), remainingAmount), tradePrice = tradePrice(entry);
             if(order.getType().equals(Order.Type.SELL))
-                remapFunds(order, newOrder, tradeAmount);
+                remapFunds(order, newOrder, orderType, tradeAmount, tradePrice, tradingFee);
             else
-                remapFunds(newOrder, order, tradeAmount);
+                remapFunds(newOrder, order, orderType, tradeAmount, tradePrice, tradingFee);
 
             session.update(order);
-            if(newOrder.getStatus().equals(Order.Status.COMPLETED)) {
-                break; // Order executed
+            journal(OrderJournal.Type.FILL, 0, tradingPair.getId(), newOrder.getId(), order.getId(), tradeAmount, tradePrice);
+            orderBook.fill(entry, tradeAmount);
+            remainingAmount -= tradeAmount;
+        }
+        if(newOrder.isActual()) {
+            if (newOrder.getExecution() == Order.Execution.LIMIT) {
+                orderBook.add(new OrderBook.Entry(newOrder)); // Rest remaining amount
+            } else if (newOrder.getExecution() == Order.Execution.FOK) {
+                throw new IllegalStateException("Fill-or-kill order not filled"); // Live liquidity is checked by checkOrder
+            } else { // Remainder never rests
+                newOrder.cancel();
+                returnUnusedFunds(newOrder);
+                journal(OrderJournal.Type.CANCEL, 0, tradingPair.getId(), newOrder.getId(), 0, 0, 0);
             }
         }
-        session.save(newOrder);
+        accountStream.orderChanged(newOrder);
+    }
+
+    private Order executeOrderSequenced(@NonNull Order newOrder) throws Exception {
+        final long start = System.nanoTime();
+        final Session session = sessionFactory.getCurrentSession();
+        checkOrder(session, newOrder);
+        log.info(String.format("executeOrder => %s", newOrder));
+
+        final OrderBook orderBook = getOrderBook(newOrder.getTradingPair());
+        synchronized (orderBook) {
+            reloadOnRollback(newOrder.getTradingPair());
+            lockWallets(session, Collections.singletonList(newOrder));
+            Assert.isTrue(hasWallets(newOrder), "Wallet not found");
+            final long balance = Calculator.toUnits(accountManager.getVirtualWalletBalance(newOrder.getSourceWallet())),
+                    required = requiredFunds(newOrder);
+            if(balance < required) {
+                throw new MarketException("Insufficient funds");
+            }
+            addBalance(newOrder.getTradingPair(), newOrder.getSourceWallet(), -required); // Lock funds
+            matchOrder(session, newOrder, orderBook);
+        }
         log.info(String.format("Order executed in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
         return newOrder;
     }
 
+    // Orders of one pair are matched in a single transaction, external wallet balances are requested once
+    private void executeOrdersSequenced(List<Order> orders, Exception[] rejections, List<Integer> indexes) throws Exception {
+        final Session session = sessionFactory.getCurrentSession();
+        final Map<Long, BigDecimal> externalBalances = new HashMap<>(); // Wallet => balance excluding virtual part
+        final List<Order> batch = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            rejections[index] = null; // Run again after a deadlock
+            batch.add(orders.get(index));
+        }
+        lockWallets(session, batch); // All taker wallets of the batch, before the first maker is locked
+        OrderBook orderBook = null;
+        for (int index : indexes) {
+            final Order newOrder = orders.get(index);
+            try {
+                Assert.isTrue(hasWallets(newOrder), "Wallet not found");
+                checkOrder(session, newOrder);
+            } catch (MarketException | IllegalArgumentException e) {
+                rejections[index] = e;
+                continue;
+            }
+            log.info(String.format("executeOrder => %s", newOrder));
+
+            if (orderBook == null) {
+                orderBook = getOrderBook(newOrder.getTradingPair());
+                reloadOnRollback(newOrder.getTradingPair());
+            }
+            synchronized (orderBook) {
+                final VirtualWallet source = newOrder.getSourceWallet();
+                BigDecimal external = externalBalances.get(source.getId());
+                if (external == null) {
+                    external = accountManager.getVirtualWalletBalance(source).subtract(source.getVirtualBalance());
+                    externalBalances.put(source.getId(), external);
+                }
+                final long required = requiredFunds(newOrder);
+                if (Calculator.toUnits(external.add(source.getVirtualBalance())) < required) {
+                    rejections[index] = new MarketException("Insufficient funds");
+                    continue;
+                }
+                addBalance(newOrder.getTradingPair(), source, -required); // Lock funds
+                matchOrder(session, newOrder, orderBook);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Exception> executeOrders(@NonNull final List<Order> orders) throws Exception {
+        final Exception[] rejections = new Exception[orders.size()];
+        final Map<Long, List<Integer>> pairs = new LinkedHashMap<>(); // Trading pair => order indexes
+        for (int i = 0; i < orders.size(); i++) {
+            final TradingPair tradingPair = orders.get(i).getTradingPair();
+            Assert.notNull(tradingPair, "Invalid parameters");
+            List<Integer> indexes = pairs.get(tradingPair.getId());
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                pairs.put(tradingPair.getId(), indexes);
+            }
+            indexes.add(i);
+        }
+
+        for (final List<Integer> indexes : pairs.values()) {
+            final List<Order> batch = new ArrayList<>(indexes.size());
+            for (int index : indexes) batch.add(orders.get(index));
+            try {
+                executeSequenced(orders.get(indexes.get(0)).getTradingPair(), new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        executeOrdersSequenced(orders, rejections, indexes);
+                        return null;
+                    }
+                }, batch);
+            } catch (Exception e) { // Whole pair is rolled back
+                log.error(e);
+                for (int index : indexes) if (rejections[index] == null) rejections[index] = e;
+            }
+            final Set<String> logins = new HashSet<>(); // One eviction pass per pair
+            for (int index : indexes) logins.add(orders.get(index).getAccount().getLogin());
+            cacheCleaner.ordersEvict(logins, Collections.singleton(orders.get(indexes.get(0)).getTradingPair().getId()));
+        }
+        return Arrays.asList(rejections);
+    }
+
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
     public Criteria getOpenOrders(TradingPair tradingPair, Order.Type orderType) {
@@ -0,0 +1,351 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.utils.Calculator;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Resting orders of one trading pair: price levels sorted best-first, FIFO queue inside each level
+// Prices and amounts are fixed-point units (see Calculator)
+// Aggregated depth and a copy of every resting order are kept up to date by every change and can be read without the book lock
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class OrderBook {
+    @Data
+    @AllArgsConstructor
+    @EqualsAndHashCode(of = "orderId")
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class Entry {
+        final long orderId;
+        final Order.Type type;
+        final long price;
+        long remainingAmount;
+        final Date openDate;
+
+        public Entry(Order order) {
+            this(order.getId(), order.getType(), Calculator.toUnits(order.getPrice()), order.getRemainingUnits(), order.getOpenDate());
+        }
+    }
+
+    @Value
+    public static class Level {
+        long price;
+        long amount;
+    }
+
+    @Value
+    public static class Snapshot { // Immutable, shared by all readers of its version
+        long version, time;
+        List<Entry> bids, asks; // Detached copies in matching priority order
+    }
+
+    @Value
+    private static class Position { // Of a resting order in matching priority: price level, then arrival
+        long price, sequence;
+    }
+
+    private static class PositionComparator implements Comparator<Position> {
+        final boolean descending;
+
+        PositionComparator(boolean descending) {
+            this.descending = descending;
+        }
+
+        @Override
+        public int compare(Position first, Position second) {
+            final int compare = Long.compare(first.getPrice(), second.getPrice());
+            return compare != 0 ? (descending ? -compare : compare) : Long.compare(first.getSequence(), second.getSequence());
+        }
+    }
+
+    static final int SNAPSHOT_ATTEMPTS = 3; // Lock-free copies overlapping a change, then copied under the book lock
+
+    final NavigableMap<Long, Deque<Entry>> buyLevels = new TreeMap<>(Collections.reverseOrder()); // Highest bid first
+    final NavigableMap<Long, Deque<Entry>> sellLevels = new TreeMap<>(); // Lowest ask first
+    final Map<Long, Entry> entries = new HashMap<>();
+    final ConcurrentNavigableMap<Long, Long> buyDepth = new ConcurrentSkipListMap<>(Collections.reverseOrder()); // Price => remaining amount
+    final ConcurrentNavigableMap<Long, Long> sellDepth = new ConcurrentSkipListMap<>();
+    final ConcurrentNavigableMap<Position, Entry> buyOrders = new ConcurrentSkipListMap<>(new PositionComparator(true)); // Detached copies
+    final ConcurrentNavigableMap<Position, Entry> sellOrders = new ConcurrentSkipListMap<>(new PositionComparator(false));
+    final Map<Long, Position> positions = new HashMap<>();
+    long sequence;
+    volatile long changes; // Odd while the writer changes the book, copies of readers overlapping it are retried
+
+    @Getter
+    volatile long version = System.currentTimeMillis() * 1000; // Changes with depth, starts from clock to keep growing across restarts
+
+    volatile Snapshot snapshot;
+    final Object snapshotLock = new Object(); // Readers copy one at a time, never blocking the writer
+
+    @Getter
+    final long tradingPairId;
+
+    public OrderBook(long tradingPairId) {
+        this.tradingPairId = tradingPairId;
+    }
+
+    private NavigableMap<Long, Deque<Entry>> getLevels(@NonNull Order.Type type) {
+        return type == Order.Type.BUY ? buyLevels : sellLevels;
+    }
+
+    private ConcurrentNavigableMap<Long, Long> getDepth(@NonNull Order.Type type) {
+        return type == Order.Type.BUY ? buyDepth : sellDepth;
+    }
+
+    private ConcurrentNavigableMap<Position, Entry> getOrders(@NonNull Order.Type type) {
+        return type == Order.Type.BUY ? buyOrders : sellOrders;
+    }
+
+    private static Entry copy(Entry entry) {
+        return new Entry(entry.getOrderId(), entry.getType(), entry.getPrice(), entry.getRemainingAmount(), entry.getOpenDate());
+    }
+
+    // Called by the single writer holding the book lock
+    private void addDepth(Order.Type type, long price, long delta) {
+        final ConcurrentNavigableMap<Long, Long> depth = getDepth(type);
+        final Long current = depth.get(price);
+        final long amount = (current == null ? 0 : current) + delta;
+        if (amount > 0) {
+            depth.put(price, amount);
+        } else {
+            depth.remove(price);
+        }
+        version++;
+    }
+
+    public void add(@NonNull Entry entry) {
+        if (entries.containsKey(entry.getOrderId())) {
+            throw new IllegalStateException("Order already in book: " + entry);
+        }
+        changes++;
+        try {
+            entries.put(entry.getOrderId(), entry);
+            final NavigableMap<Long, Deque<Entry>> levels = getLevels(entry.getType());
+            Deque<Entry> level = levels.get(entry.getPrice());
+            if (level == null) {
+                level = new ArrayDeque<>();
+                levels.put(entry.getPrice(), level);
+            }
+            level.addLast(entry);
+            final Position position = new Position(entry.getPrice(), sequence++);
+            positions.put(entry.getOrderId(), position);
+            getOrders(entry.getType()).put(position, copy(entry));
+            addDepth(entry.getType(), entry.getPrice(), entry.getRemainingAmount());
+        } finally {
+            changes++;
+        }
+    }
+
+    private Entry removeEntry(long orderId) {
+        final Entry entry = entries.remove(orderId);
+        if (entry != null) {
+            final NavigableMap<Long, Deque<Entry>> levels = getLevels(entry.getType());
+            final Deque<Entry> level = levels.get(entry.getPrice());
+            level.remove(entry);
+            if (level.isEmpty()) {
+                levels.remove(entry.getPrice());
+            }
+            getOrders(entry.getType()).remove(positions.remove(orderId));
+            addDepth(entry.getType(), entry.getPrice(), -entry.getRemainingAmount());
+        }
+        return entry;
+    }
+
+    public Entry remove(long orderId) {
+        changes++;
+        try {
+            return removeEntry(orderId);
+        } finally {
+            changes++;
+        }
+    }
+
+    public Entry get(long orderId) {
+        return entries.get(orderId);
+    }
+
+    // Best resting order of the given side, oldest first within the price level
+    public Entry getBest(@NonNull Order.Type type) {
+        final Map.Entry<Long, Deque<Entry>> level = getLevels(type).firstEntry();
+        return level == null ? null : level.getValue().peekFirst();
+    }
+
+    public void fill(@NonNull Entry entry, long amount) {
+        final long remaining = entry.getRemainingAmount() - amount;
+        Assert.isTrue(remaining >= 0, "Fill exceeds remaining amount");
+        changes++;
+        try {
+            if (remaining == 0) {
+                removeEntry(entry.getOrderId());
+            } else {
+                final Position position = positions.get(entry.getOrderId());
+                if (position != null) getOrders(entry.getType()).put(position, new Entry(entry.getOrderId(), entry.getType(), entry.getPrice(), remaining, entry.getOpenDate()));
+                addDepth(entry.getType(), entry.getPrice(), -amount);
+            }
+            entry.setRemainingAmount(remaining);
+        } finally {
+            changes++;
+        }
+    }
+
+    public void clear() {
+        changes++;
+        try {
+            buyLevels.clear();
+            sellLevels.clear();
+            entries.clear();
+            buyDepth.clear();
+            sellDepth.clear();
+            buyOrders.clear();
+            sellOrders.clear();
+            positions.clear();
+            version++;
+        } finally {
+            changes++;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getTotalAmount() {
+        long total = 0;
+        for (Entry entry : entries.values()) total = Calculator.addExact(total, entry.getRemainingAmount());
+        return total;
+    }
+
+    // Detached copies in matching priority order, bids first
+    public List<Entry> copyEntries() {
+        final List<Entry> copy = new ArrayList<>(entries.size());
+        for (Deque<Entry> level : buyLevels.values()) for (Entry entry : level) {
+            copy.add(new Entry(entry.getOrderId(), entry.getType(), entry.getPrice(), entry.getRemainingAmount(), entry.getOpenDate()));
+        }
+        for (Deque<Entry> level : sellLevels.values()) for (Entry entry : level) {
+            copy.add(new Entry(entry.getOrderId(), entry.getType(), entry.getPrice(), entry.getRemainingAmount(), entry.getOpenDate()));
+        }
+        return copy;
+    }
+
+    // Copy of the orders maintained by the writer, null if a change overlapped it
+    private Snapshot copyOrders(long now) {
+        final long before = changes;
+        if ((before & 1) != 0) {
+            return null;
+        }
+        final long copiedVersion = version;
+        final List<Entry> bids = new ArrayList<>(buyOrders.values()), asks = new ArrayList<>(sellOrders.values());
+        return changes == before ? new Snapshot(copiedVersion, now, Collections.unmodifiableList(bids), Collections.unmodifiableList(asks)) : null;
+    }
+
+    // Every resting order, safe to call from any thread: a changed book is copied at most once per version and
+    // not more often than maxAge, readers in between share the same copy
+    // The copy is taken without the book lock, which is only taken if the writer keeps overlapping it
+    public Snapshot getSnapshot(long maxAge) {
+        final long now = System.currentTimeMillis();
+        Snapshot current = snapshot;
+        if (current != null && (current.getVersion() == version || now - current.getTime() < maxAge)) {
+            return current;
+        }
+        synchronized (snapshotLock) {
+            current = snapshot;
+            if (current == null || (current.getVersion() != version && now - current.getTime() >= maxAge)) {
+                Snapshot copy = null;
+                for (int attempt = 0; copy == null && attempt < SNAPSHOT_ATTEMPTS; attempt++) copy = copyOrders(now);
+                if (copy == null) synchronized (this) { // Writer holds it while changing
+                    while (copy == null) copy = copyOrders(now);
+                }
+                current = copy;
+                snapshot = current;
+            }
+        }
+        return current;
+    }
+
+    // Best-first levels merged into buckets of tick units in one pass, stops at the limit
+    // Bids are rounded down and asks up, so a bucket never shows a better price than its orders
+    public static List<Level> group(@NonNull Iterable<Map.Entry<Long, Long>> levels, @NonNull Order.Type type, long tick, int limit) {
+        Assert.isTrue(tick > 0, "Invalid tick");
+        final List<Level> depth = new ArrayList<>(Math.min(limit, 100));
+        long bucket = 0, amount = 0;
+        for (Map.Entry<Long, Long> level : levels) {
+            final long price = type == Order.Type.BUY ? level.getKey() / tick * tick : (level.getKey() + tick - 1) / tick * tick;
+            if (amount > 0 && price != bucket) {
+                depth.add(new Level(bucket, amount));
+                amount = 0;
+            }
+            if (depth.size() >= limit) return depth;
+            bucket = price;
+            amount += level.getValue();
+        }
+        if (amount > 0 && depth.size() < limit) depth.add(new Level(bucket, amount));
+        return depth;
+    }
+
+    // Best price levels of the given side, safe to call from any thread
+    public List<Level> getDepth(@NonNull Order.Type type, int limit) {
+        return getDepth(type, limit, 1);
+    }
+
+    public List<Level> getDepth(@NonNull Order.Type type, int limit, long tick) {
+        return group(getDepth(type).entrySet(), type, tick, limit);
+    }
+
+    // Amount available to a taker up to its limit price, counting stops at maxAmount
+    public long getLiquidity(@NonNull Order.Type takerType, long limitPrice, long maxAmount) {
+        long total = 0;
+        for (Map.Entry<Long, Deque<Entry>> level : getLevels(opposite(takerType)).entrySet()) {
+            if (!crosses(level.getKey(), takerType, limitPrice)) break;
+            for (Entry entry : level.getValue()) {
+                total += entry.getRemainingAmount();
+                if (total >= maxAmount) return total;
+            }
+        }
+        return total;
+    }
+
+    // Resting orders a taker would match up to its limit price, in priority order until maxAmount is reached
+    public List<Entry> getMatching(@NonNull Order.Type takerType, long limitPrice, long maxAmount) {
+        final List<Entry> matching = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<Long, Deque<Entry>> level : getLevels(opposite(takerType)).entrySet()) {
+            if (!crosses(level.getKey(), takerType, limitPrice)) break;
+            for (Entry entry : level.getValue()) {
+                matching.add(entry);
+                total += entry.getRemainingAmount();
+                if (total >= maxAmount) return matching;
+            }
+        }
+        return matching;
+    }
+
+    // Worst price a taker reaches sweeping the amount, last level price if the book is thinner, 0 if empty
+    public long getSweepPrice(@NonNull Order.Type takerType, long amount) {
+        long total = 0, price = 0;
+        for (Map.Entry<Long, Deque<Entry>> level : getLevels(opposite(takerType)).entrySet()) {
+            price = level.getKey();
+            for (Entry entry : level.getValue()) {
+                total += entry.getRemainingAmount();
+                if (total >= amount) return price;
+            }
+        }
+        return price;
+    }
+
+    public static boolean crosses(long restingPrice, @NonNull Order.Type takerType, long limitPrice) {
+        return takerType == Order.Type.BUY ? restingPrice <= limitPrice : restingPrice >= limitPrice;
+    }
+
+    // Resting order is executable against taker's limit price
+    public static boolean crosses(@NonNull Entry resting, @NonNull Order.Type takerType, long limitPrice) {
+        return crosses(resting.getPrice(), takerType, limitPrice);
+    }
+
+    public static Order.Type opposite(@NonNull Order.Type type) {
+        return type == Order.Type.BUY ? Order.Type.SELL : Order.Type.BUY;
+    }
+}
@@ -0,0 +1,9 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.TradingPair;
+
+public interface OrderBookManager {
+    OrderBook getOrderBook(TradingPair tradingPair);
+    void reloadOrderBook(TradingPair tradingPair);
+    void removeOrderBook(TradingPair tradingPair);
+}
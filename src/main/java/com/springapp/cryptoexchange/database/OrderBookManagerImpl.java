@@ -0,0 +1,288 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.database.model.TradingPair;
+import com.springapp.cryptoexchange.utils.Calculator;
+import com.springapp.cryptoexchange.utils.MatchingSequencer;
+import com.springapp.cryptoexchange.utils.OrderJournal;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+@Service
+@Profile("master")
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class OrderBookManagerImpl implements OrderBookManager {
+    final Map<Long, OrderBook> orderBookMap = new ConcurrentHashMap<>();
+
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    OrderJournal orderJournal;
+
+    @Autowired
+    MatchingSequencer matchingSequencer;
+
+    @Autowired
+    @Lazy
+    JournalManager journalManager;
+
+    @Value("${snapshot.path:journal/orders.snapshot}")
+    String snapshotPath;
+
+    private static Query openOrdersQuery(Session session, String condition) {
+        return session.createQuery("select ord.tradingPair.id, ord.id, ord.type, ord.price, ord.amount - ord.completedAmount, ord.openDate " +
+                "from Order ord where " + condition + "ord.status in (:statuses) order by ord.openDate asc, ord.id asc")
+                .setParameterList("statuses", Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED))
+                .setFetchSize(500)
+                .setReadOnly(true);
+    }
+
+    private static int fillOrderBooks(Query query, Map<Long, OrderBook> orderBooks) {
+        int count = 0;
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                final Object[] row = results.get();
+                final long tradingPairId = (Long) row[0];
+                OrderBook orderBook = orderBooks.get(tradingPairId);
+                if (orderBook == null) {
+                    orderBook = new OrderBook(tradingPairId);
+                    orderBooks.put(tradingPairId, orderBook);
+                }
+                orderBook.add(new OrderBook.Entry((Long) row[1], (Order.Type) row[2], Calculator.toUnits((BigDecimal) row[3]),
+                        Calculator.toUnits((BigDecimal) row[4]), (Date) row[5]));
+                count++;
+            }
+        } finally {
+            results.close();
+        }
+        return count;
+    }
+
+    private OrderBook getOrderBook(long tradingPairId) {
+        OrderBook orderBook = orderBookMap.get(tradingPairId);
+        if (orderBook == null) { // New trading pair, nothing to load
+            synchronized (orderBookMap) {
+                orderBook = orderBookMap.get(tradingPairId);
+                if (orderBook == null) {
+                    orderBook = new OrderBook(tradingPairId);
+                    orderBookMap.put(tradingPairId, orderBook);
+                }
+            }
+        }
+        return orderBook;
+    }
+
+    public OrderBook getOrderBook(@NonNull TradingPair tradingPair) {
+        return getOrderBook(tradingPair.getId());
+    }
+
+    private int reloadOrderBook(Session session, long tradingPairId) {
+        final OrderBook orderBook = getOrderBook(tradingPairId);
+        synchronized (orderBook) {
+            orderBook.clear();
+            final Map<Long, OrderBook> loaded = new ConcurrentHashMap<>();
+            loaded.put(tradingPairId, orderBook);
+            return fillOrderBooks(openOrdersQuery(session, "ord.tradingPair.id = :tradingPairId and ")
+                    .setLong("tradingPairId", tradingPairId), loaded);
+        }
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+    public void reloadOrderBook(@NonNull TradingPair tradingPair) {
+        int count = reloadOrderBook(sessionFactory.getCurrentSession(), tradingPair.getId());
+        log.info(String.format("Order book reloaded: %s (%d orders)", tradingPair, count));
+    }
+
+    public void removeOrderBook(@NonNull TradingPair tradingPair) {
+        orderBookMap.remove(tradingPair.getId());
+    }
+
+    // Journal events are applied per transaction, taker rests in book until filled
+    private void applyEvents(List<OrderJournal.Event> events) {
+        for (OrderJournal.Event event : events) {
+            final OrderBook orderBook = getOrderBook(event.getTradingPairId());
+            switch (event.getType()) {
+                case ACCEPT:
+                    if (orderBook.get(event.getTargetId()) == null) {
+                        orderBook.add(new OrderBook.Entry(event.getTargetId(), Order.Type.values()[event.getFlag()], event.getPrice(),
+                                event.getAmount(), new Date(event.getCounterId())));
+                    }
+                    break;
+                case FILL:
+                    for (long orderId : new long[]{event.getCounterId(), event.getTargetId()}) {
+                        final OrderBook.Entry entry = orderBook.get(orderId);
+                        if (entry != null) orderBook.fill(entry, Math.min(event.getAmount(), entry.getRemainingAmount()));
+                    }
+                    break;
+                case CANCEL:
+                    orderBook.remove(event.getTargetId());
+                    break;
+            }
+        }
+    }
+
+    private int replayJournal(final OrderBookSnapshot snapshot, Session session) throws Exception {
+        final Map<Long, List<OrderJournal.Event>> unfinished = new LinkedHashMap<>();
+        final int[] applied = {0};
+        orderJournal.replay(new OrderJournal.Visitor() {
+            @Override
+            public void visit(OrderJournal.Event event) throws Exception {
+                switch (event.getType()) {
+                    case COMMIT:
+                        final List<OrderJournal.Event> events = unfinished.remove(event.getTx());
+                        if (events != null) {
+                            applyEvents(events);
+                            applied[0]++;
+                        }
+                        break;
+                    case ABORT:
+                        unfinished.remove(event.getTx());
+                        break;
+                    default:
+                        if (event.getTx() > snapshot.getSeq(event.getTradingPairId())) { // Not in snapshot
+                            List<OrderJournal.Event> txEvents = unfinished.get(event.getTx());
+                            if (txEvents == null) {
+                                txEvents = new ArrayList<>();
+                                unfinished.put(event.getTx(), txEvents);
+                            }
+                            txEvents.add(event);
+                        }
+                }
+            }
+        });
+        for (List<OrderJournal.Event> events : unfinished.values()) {
+            if (JournalManagerImpl.isCommitted(session, events)) {
+                applyEvents(events);
+                applied[0]++;
+            }
+        }
+        return applied[0];
+    }
+
+    // Cheap aggregate check, pairs which differ from database are loaded again
+    @SuppressWarnings("unchecked")
+    private int reconcile(Session session) {
+        final List<Object[]> rows = session.createQuery("select ord.tradingPair.id, count(ord.id), sum(ord.amount - ord.completedAmount) " +
+                "from Order ord where ord.status in (:statuses) group by ord.tradingPair.id")
+                .setParameterList("statuses", Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED))
+                .list();
+        final Map<Long, Object[]> persisted = new HashMap<>();
+        for (Object[] row : rows) persisted.put((Long) row[0], row);
+
+        final Set<Long> tradingPairs = new HashSet<>(orderBookMap.keySet());
+        tradingPairs.addAll(persisted.keySet());
+        int reloaded = 0;
+        for (long tradingPairId : tradingPairs) {
+            final OrderBook orderBook = orderBookMap.get(tradingPairId);
+            final Object[] row = persisted.get(tradingPairId);
+            final long count = row == null ? 0 : (Long) row[1], amount = row == null ? 0 : Calculator.toUnits((BigDecimal) row[2]);
+            if (orderBook == null ? count != 0 : orderBook.size() != count || orderBook.getTotalAmount() != amount) {
+                log.warn(String.format("Order book #%d differs from database, reloading", tradingPairId));
+                reloadOrderBook(session, tradingPairId);
+                reloaded++;
+            }
+        }
+        return reloaded;
+    }
+
+    private void restore(OrderBookSnapshot snapshot, Session session) throws Exception {
+        for (OrderBookSnapshot.Pair pair : snapshot.getPairs()) {
+            final OrderBook orderBook = new OrderBook(pair.getTradingPairId());
+            for (OrderBook.Entry entry : pair.getEntries()) orderBook.add(entry);
+            orderBookMap.put(pair.getTradingPairId(), orderBook);
+        }
+        int applied = replayJournal(snapshot, session), reloaded = reconcile(session);
+        log.info(String.format("Order books restored from snapshot: %d pairs, %d journal transactions applied, %d pairs reloaded",
+                orderBookMap.size(), applied, reloaded));
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        final long start = System.nanoTime();
+        OrderBookSnapshot snapshot = null;
+        try {
+            snapshot = OrderBookSnapshot.read(new File(snapshotPath));
+        } catch (Exception e) {
+            log.error("Order book snapshot couldn't be read", e);
+        }
+        final OrderBookSnapshot restoreFrom = snapshot;
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+                final Session session = sessionFactory.getCurrentSession();
+                if (restoreFrom != null) try {
+                    restore(restoreFrom, session);
+                    return;
+                } catch (Exception e) {
+                    log.error("Order book restore failed, loading from database", e);
+                    orderBookMap.clear();
+                }
+                int count = fillOrderBooks(openOrdersQuery(session, ""), orderBookMap);
+                log.info(String.format("Order books loaded: %d orders in %d pairs", count, orderBookMap.size()));
+            }
+        });
+        log.info(String.format("Order books ready in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    // Each pair is captured by its own matching thread, between transactions
+    @Scheduled(fixedDelay = 60 * 1000) // Every 1m
+    public void snapshot() throws Exception {
+        final long start = System.nanoTime(), seq = orderJournal.getLastSeq();
+        final List<OrderBookSnapshot.Pair> pairs = new ArrayList<>(orderBookMap.size());
+        for (final Map.Entry<Long, OrderBook> entry : orderBookMap.entrySet()) {
+            pairs.add(matchingSequencer.execute(entry.getKey(), new Callable<OrderBookSnapshot.Pair>() {
+                @Override
+                public OrderBookSnapshot.Pair call() throws Exception {
+                    synchronized (entry.getValue()) {
+                        return new OrderBookSnapshot.Pair(entry.getKey(), orderJournal.getLastSeq(), entry.getValue().copyEntries());
+                    }
+                }
+            }));
+        }
+        final OrderBookSnapshot snapshot = new OrderBookSnapshot(seq, pairs);
+        snapshot.write(new File(snapshotPath).getAbsoluteFile());
+
+        // Older journal entries are in snapshot and database
+        orderJournal.roll();
+        orderJournal.deleteUpTo(Math.min(snapshot.getMinSeq(), journalManager.getAppliedSeq()));
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Order book snapshot written: %d pairs in %d ms", pairs.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+    }
+}
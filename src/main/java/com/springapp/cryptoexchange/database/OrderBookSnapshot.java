@@ -0,0 +1,133 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Binary image of all order books, each pair stamped with the last journal sequence it contains
+// Layout: header, pairs (id, sequence, entry count, entries), CRC32 of everything before it
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class OrderBookSnapshot {
+    static final int MAGIC = 0x4f42534e, VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4, PAIR_SIZE = 8 + 8 + 4, ENTRY_SIZE = 8 + 1 + 8 + 8 + 8;
+
+    @Value
+    public static class Pair {
+        long tradingPairId;
+        long seq;
+        List<OrderBook.Entry> entries;
+    }
+
+    long seq; // Journal sequence before the first pair was captured
+    Map<Long, Pair> pairs;
+
+    public OrderBookSnapshot(long seq, @NonNull Collection<Pair> pairs) {
+        this.seq = seq;
+        this.pairs = new HashMap<>(pairs.size());
+        for (Pair pair : pairs) this.pairs.put(pair.getTradingPairId(), pair);
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Collection<Pair> getPairs() {
+        return pairs.values();
+    }
+
+    // Events of the pair with greater sequence are not in snapshot
+    public long getSeq(long tradingPairId) {
+        final Pair pair = pairs.get(tradingPairId);
+        return pair == null ? seq : pair.getSeq();
+    }
+
+    public long getMinSeq() {
+        long min = seq;
+        for (Pair pair : pairs.values()) min = Math.min(min, pair.getSeq());
+        return min;
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[64 * 1024];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+            final int size = Math.min(chunk.length, remaining);
+            view.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+        }
+        return (int) crc.getValue();
+    }
+
+    // Written to a temporary file and moved over the previous snapshot
+    public void write(@NonNull File file) throws IOException {
+        long size = HEADER_SIZE + 4;
+        for (Pair pair : pairs.values()) size += PAIR_SIZE + (long) ENTRY_SIZE * pair.getEntries().size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Snapshot is too large");
+
+        if (file.getParentFile() != null && !file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Couldn't create snapshot directory");
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(seq).putInt(pairs.size());
+            for (Pair pair : pairs.values()) {
+                buffer.putLong(pair.getTradingPairId()).putLong(pair.getSeq()).putInt(pair.getEntries().size());
+                for (OrderBook.Entry entry : pair.getEntries()) {
+                    buffer.putLong(entry.getOrderId()).put((byte) entry.getType().ordinal()).putLong(entry.getPrice())
+                            .putLong(entry.getRemainingAmount()).putLong(entry.getOpenDate() == null ? 0 : entry.getOpenDate().getTime());
+                }
+            }
+            buffer.putInt(checksum(buffer, (int) size - 4));
+            buffer.force();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Null if there is no valid snapshot
+    public static OrderBookSnapshot read(@NonNull File file) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE + 4) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final int size = (int) channel.size();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(size - 4) != checksum(buffer, size - 4)) {
+                return null;
+            }
+            buffer.position(8);
+            final long seq = buffer.getLong();
+            final int pairCount = buffer.getInt();
+            final List<Pair> pairs = new ArrayList<>(pairCount);
+            for (int i = 0; i < pairCount; i++) {
+                final long tradingPairId = buffer.getLong(), pairSeq = buffer.getLong();
+                final int count = buffer.getInt();
+                final List<OrderBook.Entry> entries = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    final long orderId = buffer.getLong();
+                    final Order.Type type = Order.Type.values()[buffer.get()];
+                    final long price = buffer.getLong(), remainingAmount = buffer.getLong(), openDate = buffer.getLong();
+                    entries.add(new OrderBook.Entry(orderId, type, price, remainingAmount, openDate == 0 ? null : new Date(openDate)));
+                }
+                pairs.add(new Pair(tradingPairId, pairSeq, entries));
+            }
+            return new OrderBookSnapshot(seq, pairs);
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package com.springapp.cryptoexchange.database;
 
 import com.springapp.cryptoexchange.database.model.Currency;
-import com.springapp.cryptoexchange.database.model.Order;
 import com.springapp.cryptoexchange.database.model.TradingPair;
+import com.springapp.cryptoexchange.utils.CacheCleaner;
+import com.springapp.cryptoexchange.utils.MatchingSequencer;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.criterion.Restrictions;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Caching;
@@ -18,7 +18,6 @@ import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
-import java.util.Arrays;
 import java.util.List;
 
 @Repository
@@ -31,6 +30,15 @@ public class SettingsManagerImpl implements SettingsManager {
     @Lazy
     MarketManager marketManager;
 
+    @Autowired(required = false) // Master only
+    OrderBookManager orderBookManager;
+
+    @Autowired
+    MatchingSequencer matchingSequencer;
+
+    @Autowired
+    CacheCleaner cacheCleaner;
+
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
     public List<TradingPair> getTradingPairs() {
@@ -80,7 +88,6 @@ public class SettingsManagerImpl implements SettingsManager {
             @CacheEvict(value = "getAccountOrdersByPair", allEntries = true),
             @CacheEvict(value = "getAccountOrders", allEntries = true),
             @CacheEvict(value = "getAccountBalances", allEntries = true),
-            @CacheEvict(value = "getMarketDepth", key = "#tradingPair.id"),
             @CacheEvict(value = "getMarketHistory", key = "#tradingPair.id"),
             @CacheEvict(value = "getTradingPairs", allEntries = true),
             @CacheEvict(value = "getTradingPairInfo", key = "#tradingPair.id")
@@ -89,13 +96,13 @@ public class SettingsManagerImpl implements SettingsManager {
     @SuppressWarnings("unchecked")
     public void removeTradingPair(TradingPair tradingPair) throws Exception {
         Session session = sessionFactory.getCurrentSession();
-        final List<Order> orderList = session.createCriteria(Order.class)
-                .setFetchSize(200)
-                .add(Restrictions.eq("tradingPair", tradingPair))
-                .add(Restrictions.in("status", Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED)))
-                .list();
-        for(Order order : orderList) marketManager.cancelOrder(order);
+        marketManager.cancelOrders(null, tradingPair, null);
         session.delete(tradingPair);
+        cacheCleaner.marketDepthEvict(tradingPair.getId());
+        if (orderBookManager != null) {
+            orderBookManager.removeOrderBook(tradingPair);
+        }
+        matchingSequencer.remove(tradingPair.getId());
         log.info("Trading pair removed: " + tradingPair);
     }
 }
@@ -0,0 +1,89 @@
+package com.springapp.cryptoexchange.database;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+
+// Rolling 24h statistics of one trading pair: ring buffer of minute buckets, slot = minute % size
+// Prices and amounts are fixed-point units (see Calculator)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class TickerWindow {
+    static final int SIZE = 24 * 60;
+    static final long MINUTE = 60 * 1000;
+
+    @Value
+    public static class Stats {
+        long high, low, volume; // Zero if there were no trades in window
+        long first, last; // First price in window, last price ever
+    }
+
+    @Getter
+    final long tradingPairId;
+
+    final long[] minutes = new long[SIZE]; // Minute held by the slot, 0 if empty
+    final long[] open = new long[SIZE], high = new long[SIZE], low = new long[SIZE], volume = new long[SIZE];
+    long lastMinute, lastPrice;
+
+    @Getter
+    volatile long version; // Changes with every trade
+
+    @Getter
+    Stats written; // Last published to database
+
+    public TickerWindow(long tradingPairId) {
+        this.tradingPairId = tradingPairId;
+    }
+
+    private void add(long minute, long openPrice, long highPrice, long lowPrice, long closePrice, long amount) {
+        final int slot = (int) (minute % SIZE);
+        if (minutes[slot] > minute) {
+            return; // Older than window
+        }
+        if (minutes[slot] != minute) {
+            minutes[slot] = minute;
+            open[slot] = openPrice;
+            high[slot] = highPrice;
+            low[slot] = lowPrice;
+            volume[slot] = 0;
+        }
+        high[slot] = Math.max(high[slot], highPrice);
+        low[slot] = Math.min(low[slot], lowPrice);
+        volume[slot] += amount;
+        version++;
+        if (minute >= lastMinute) {
+            lastMinute = minute;
+            lastPrice = closePrice;
+        }
+    }
+
+    public synchronized void update(long time, long price, long amount) {
+        add(time / MINUTE, price, price, price, price, amount);
+    }
+
+    // Minute candle written before restart
+    public synchronized void load(long openTime, long openPrice, long highPrice, long lowPrice, long closePrice, long amount) {
+        add(openTime / MINUTE, openPrice, highPrice, lowPrice, closePrice, amount);
+    }
+
+    public synchronized Stats getStats(long now) {
+        final long last = now / MINUTE, first = last - SIZE + 1;
+        long highPrice = 0, lowPrice = 0, amount = 0, firstMinute = Long.MAX_VALUE, firstPrice = 0;
+        for (int slot = 0; slot < SIZE; slot++) {
+            final long minute = minutes[slot];
+            if (minute < first || minute > last || minute == 0) continue;
+            highPrice = Math.max(highPrice, high[slot]);
+            lowPrice = lowPrice == 0 ? low[slot] : Math.min(lowPrice, low[slot]);
+            amount += volume[slot];
+            if (minute < firstMinute) {
+                firstMinute = minute;
+                firstPrice = open[slot];
+            }
+        }
+        return new Stats(highPrice, lowPrice, amount, firstPrice, lastPrice);
+    }
+
+    public synchronized void setWritten(Stats stats) {
+        written = stats;
+    }
+}
@@ -21,12 +21,38 @@ import java.util.Date;
 @NoArgsConstructor
 @RequiredArgsConstructor
 @Table(name = "history", indexes = {
-        @Index(columnList = "tradingPair_id, open_time", unique = true)
+        @Index(name = "candleIndex", columnList = "tradingPair_id, resolution, open_time", unique = true)
 })
-@EqualsAndHashCode(of = {"openTime", "tradingPair"})
+@EqualsAndHashCode(of = {"openTime", "interval", "tradingPair"})
 @FieldDefaults(level = AccessLevel.PRIVATE)
 @Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 public class Candle implements Serializable {
+    public enum Interval {
+        M1("1m", 60 * 1000L),
+        M5("5m", 5 * 60 * 1000L),
+        M15("15m", 15 * 60 * 1000L),
+        H1("1h", 60 * 60 * 1000L),
+        H4("4h", 4 * 60 * 60 * 1000L),
+        D1("1d", 24 * 60 * 60 * 1000L);
+
+        @Getter final String code;
+        @Getter final long millis;
+
+        Interval(String code, long millis) {
+            this.code = code;
+            this.millis = millis;
+        }
+
+        public long getOpenTime(long time) { // UTC-aligned bucket start
+            return time - time % millis;
+        }
+
+        public static Interval of(@NonNull String code) {
+            for (Interval interval : values()) if (interval.code.equals(code)) return interval;
+            throw new IllegalArgumentException("Invalid interval: " + code);
+        }
+    }
+
     @Id @GeneratedValue @JsonIgnore
     long id;
 
@@ -36,6 +62,9 @@ public class Candle implements Serializable {
     @Column(name = "close_time")
     Date closeTime;
 
+    @Column(name = "resolution", updatable = false) // Null in hourly candles written before
+    Interval interval;
+
     @Version
     @Column(name = "update_time")
     Date updateTime;
@@ -63,6 +92,10 @@ public class Candle implements Serializable {
     @ManyToOne(fetch = FetchType.LAZY) @JsonIgnore @NonNull
     TradingPair tradingPair;
 
+    public Interval getInterval() {
+        return interval == null ? Interval.H1 : interval;
+    }
+
     public Candle(final TradingPair tradingPair, @NonNull final Candle previousCandle) { // open new candle
         this(tradingPair);
         Assert.isTrue(previousCandle.isClosed(), "Candle is still open");
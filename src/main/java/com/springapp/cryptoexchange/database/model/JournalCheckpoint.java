@@ -0,0 +1,21 @@
+package com.springapp.cryptoexchange.database.model;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import javax.persistence.*;
+
+@Data
+@Entity
+@NoArgsConstructor
+@RequiredArgsConstructor
+@Table(name = "journal_checkpoint")
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class JournalCheckpoint {
+    @Id
+    @Column(name = "name", length = 30)
+    @NonNull String name;
+
+    @Column(name = "applied_seq", nullable = false)
+    long appliedSeq = 0; // Last journal commit marker applied to database
+}
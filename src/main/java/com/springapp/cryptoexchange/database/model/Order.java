@@ -2,6 +2,7 @@ package com.springapp.cryptoexchange.database.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.springapp.cryptoexchange.database.MarketManager;
+import com.springapp.cryptoexchange.utils.Calculator;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 import org.hibernate.annotations.Cache;
@@ -35,6 +36,13 @@ public class Order implements Serializable {
         BUY, SELL
     }
 
+    public enum Execution {
+        LIMIT, // Remainder rests in book
+        MARKET, // Price is taken from book, remainder cancelled
+        IOC, // Immediate or cancel: remainder cancelled
+        FOK // Fill or kill: rejected unless filled completely
+    }
+
     @Id
     @GeneratedValue
     long id;
@@ -55,6 +63,9 @@ public class Order implements Serializable {
     @Column(name = "type", nullable = false)
     @NonNull Type type;
 
+    @Column(name = "execution") // Null in orders created before
+    Execution execution = Execution.LIMIT;
+
     @DecimalMin("0.00000001")
     @Column(name = "amount", precision = 38, scale = 8, nullable = false)
     @NonNull BigDecimal amount;
@@ -86,10 +97,19 @@ public class Order implements Serializable {
     @JsonIgnore
     @NonNull Account account;
 
+    public Execution getExecution() {
+        return execution == null ? Execution.LIMIT : execution;
+    }
+
     public BigDecimal getRemainingAmount() {
         return amount.subtract(completedAmount);
     }
 
+    @JsonIgnore
+    public long getRemainingUnits() {
+        return Calculator.toUnits(amount) - Calculator.toUnits(completedAmount);
+    }
+
     public void addCompletedAmount(final @NonNull BigDecimal amount) throws MarketManager.MarketException {
         setCompletedAmount(completedAmount.add(amount));
         if(completedAmount.compareTo(getAmount()) > 0) {
@@ -118,6 +138,7 @@ public class Order implements Serializable {
         } else if (status.equals(Status.PARTIALLY_COMPLETED)) {
             setStatus(Status.PARTIALLY_CANCELLED);
         } else throw new IllegalArgumentException("Order already cancelled");
+        setCloseDate(new Date());
     }
 
     public boolean isActual() {
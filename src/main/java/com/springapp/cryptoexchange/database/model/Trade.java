@@ -0,0 +1,80 @@
+package com.springapp.cryptoexchange.database.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.hibernate.annotations.Immutable;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+// Single fill, written once and kept after its orders are cleaned
+@Data
+@Entity
+@Immutable
+@NoArgsConstructor
+@Table(name = "trades", indexes = { // History pages are read by (trade_time, id) keys
+        @Index(name = "tradeMarketKeyIndex", columnList = "tradingPair_id, trade_time, id"),
+        @Index(name = "tradeSellerKeyIndex", columnList = "seller_id, trade_time, id"),
+        @Index(name = "tradeBuyerKeyIndex", columnList = "buyer_id, trade_time, id"),
+        @Index(name = "tradeSellerPairIndex", columnList = "seller_id, tradingPair_id, trade_time, id"),
+        @Index(name = "tradeBuyerPairIndex", columnList = "buyer_id, tradingPair_id, trade_time, id")
+})
+@ToString(exclude = {"tradingPair", "seller", "buyer"})
+@EqualsAndHashCode(of = "id")
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class Trade implements Serializable {
+    @Id
+    @GeneratedValue
+    long id;
+
+    @Column(name = "trade_time", nullable = false, updatable = false)
+    Date time = new Date();
+
+    @Column(name = "type", nullable = false, updatable = false)
+    Order.Type type; // Taker side
+
+    @Column(name = "price", precision = 38, scale = 8, nullable = false, updatable = false)
+    BigDecimal price;
+
+    @Column(name = "amount", precision = 38, scale = 8, nullable = false, updatable = false)
+    BigDecimal amount;
+
+    @Column(name = "total_sum", precision = 38, scale = 8, nullable = false, updatable = false)
+    BigDecimal total;
+
+    @Column(name = "sell_order_id", nullable = false, updatable = false)
+    long sellOrderId; // Orders are deleted by auto-clean, no foreign key
+
+    @Column(name = "buy_order_id", nullable = false, updatable = false)
+    long buyOrderId;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(updatable = false)
+    @JsonIgnore
+    TradingPair tradingPair;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "seller_id", updatable = false)
+    @JsonIgnore
+    Account seller;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "buyer_id", updatable = false)
+    @JsonIgnore
+    Account buyer;
+
+    public Trade(@NonNull Order sellOrder, @NonNull Order buyOrder, @NonNull Order.Type type, @NonNull BigDecimal price, @NonNull BigDecimal amount, @NonNull BigDecimal total) {
+        this.tradingPair = sellOrder.getTradingPair();
+        this.sellOrderId = sellOrder.getId();
+        this.buyOrderId = buyOrder.getId();
+        this.seller = sellOrder.getAccount();
+        this.buyer = buyOrder.getAccount();
+        this.type = type;
+        this.price = price;
+        this.amount = amount;
+        this.total = total;
+    }
+}
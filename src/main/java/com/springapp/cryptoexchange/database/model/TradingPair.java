@@ -51,10 +51,10 @@ public class TradingPair implements Serializable {
     String description;
 
 
-    // Transient:
+    // Rolling 24h ticker, published periodically:
     @Column(name = "last_reset")
     @JsonIgnore
-    Date lastReset = new Date();
+    Date lastReset = new Date(); // Last publication
 
     @DecimalMin("0")
     @Column(name = "volume", precision = 38, scale = 8)
@@ -72,6 +72,9 @@ public class TradingPair implements Serializable {
     @Column(name = "low_price", precision = 38, scale = 8)
     BigDecimal dayLow = BigDecimal.ZERO;
 
+    @Column(name = "price_change", precision = 38, scale = 8)
+    BigDecimal dayChange = BigDecimal.ZERO; // Last price minus first price in window
+
     // Settings:
     @DecimalMin("0")
     @Column(name = "min_trade_amount", nullable = false)
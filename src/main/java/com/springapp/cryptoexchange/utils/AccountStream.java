@@ -0,0 +1,365 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.AccountManager;
+import com.springapp.cryptoexchange.database.OrderBookManager;
+import com.springapp.cryptoexchange.database.model.*;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Order, fill and balance updates of watched accounts pushed to "account/{login}" topics
+// Changes are collected per transaction and published after commit with the committed order and wallet state
+// Master collects them from matching, other instances poll trades, updated orders and wallets of watched accounts
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AccountStream {
+    static final int ORDERS_SIZE = 50;
+    static final long POLL_INTERVAL = 1000, POLL_OVERLAP = 2000; // Without order books, version timestamps of orders are compared with overlap
+    static final long SUBSCRIBE_TIMEOUT = 10 * 1000; // Account is watched from snapshot or reconnect until subscribed
+
+    @Value
+    public static class Fill implements Serializable {
+        long orderId, tradingPairId;
+        Order.Type type; // Side of account
+        BigDecimal price, amount, total;
+        Date time;
+    }
+
+    @Value
+    public static class Balance implements Serializable {
+        long currencyId;
+        String currency;
+        BigDecimal delta; // Zero in snapshot
+        BigDecimal virtualBalance; // Exchange part of balance, external part does not change by trading
+    }
+
+    @Value
+    public static class Snapshot implements Serializable {
+        List<Order> orders;
+        List<ConvertService.AccountBalance> balances;
+        List<Balance> wallets; // Balance = balances + (event.virtualBalance - wallets.virtualBalance)
+    }
+
+    private static class Changes {
+        final Map<String, Set<Long>> orders = new HashMap<>(); // Login => order ids
+        final Map<String, Map<Long, Long>> wallets = new HashMap<>(); // Login => wallet id => delta units
+        final Map<String, List<Fill>> fills = new HashMap<>();
+
+        Set<Long> orders(String login) {
+            Set<Long> ids = orders.get(login);
+            if (ids == null) {
+                ids = new LinkedHashSet<>();
+                orders.put(login, ids);
+            }
+            return ids;
+        }
+
+        Map<Long, Long> wallets(String login) {
+            Map<Long, Long> deltas = wallets.get(login);
+            if (deltas == null) {
+                deltas = new HashMap<>();
+                wallets.put(login, deltas);
+            }
+            return deltas;
+        }
+
+        void addDelta(String login, long walletId, long delta) {
+            final Map<Long, Long> deltas = wallets(login);
+            final Long current = deltas.get(walletId);
+            deltas.put(walletId, Calculator.addExact(current == null ? 0 : current, delta));
+        }
+
+        void addFill(String login, Fill fill) {
+            List<Fill> list = fills.get(login);
+            if (list == null) {
+                list = new ArrayList<>();
+                fills.put(login, list);
+            }
+            list.add(fill);
+        }
+
+        void addAll(Changes changes) {
+            for (Map.Entry<String, Set<Long>> entry : changes.orders.entrySet()) orders(entry.getKey()).addAll(entry.getValue());
+            for (Map.Entry<String, Map<Long, Long>> entry : changes.wallets.entrySet()) {
+                for (Map.Entry<Long, Long> delta : entry.getValue().entrySet()) addDelta(entry.getKey(), delta.getKey(), delta.getValue());
+            }
+            for (Map.Entry<String, List<Fill>> entry : changes.fills.entrySet()) {
+                for (Fill fill : entry.getValue()) addFill(entry.getKey(), fill);
+            }
+        }
+
+        boolean isEmpty() {
+            return orders.isEmpty() && wallets.isEmpty() && fills.isEmpty();
+        }
+    }
+
+    private static class AccountState { // Polling position, lastPoll is zero until snapshot is loaded
+        final long accountId;
+        volatile long watched = System.currentTimeMillis(); // Last snapshot or reconnect
+        long lastTradeId, lastPoll;
+        final Map<Long, BigDecimal> balances = new HashMap<>(); // Wallet id => virtual balance
+
+        AccountState(long accountId) {
+            this.accountId = accountId;
+        }
+    }
+
+    @Autowired
+    StreamHub streamHub;
+
+    @Autowired
+    AccountManager accountManager;
+
+    @Autowired
+    ConvertService convertService;
+
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired(required = false) // Master only
+    OrderBookManager orderBookManager;
+
+    final ConcurrentMap<String, AccountState> accounts = new ConcurrentHashMap<>(); // Watched logins
+    Changes committed = new Changes();
+
+    public static String topic(String login) {
+        return "account/" + login;
+    }
+
+    private boolean isWatched(String login) {
+        return accounts.containsKey(login);
+    }
+
+    // Keeps a watched account watched while its client reconnects, false if it is not watched anymore:
+    // its topic was reset when unwatched, so the client needs a snapshot, which watches it again
+    public boolean watch(@NonNull String login) {
+        final AccountState state = accounts.get(login);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            if (accounts.get(login) != state) {
+                return false;
+            }
+            state.watched = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    // Changes of current transaction, queued for publishing on commit
+    private Changes getChanges() {
+        Changes changes = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            final Changes transactionChanges = new Changes();
+            changes = transactionChanges;
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    synchronized (AccountStream.this) {
+                        committed.addAll(transactionChanges);
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(AccountStream.this);
+                }
+            });
+        }
+        return changes;
+    }
+
+    public void orderChanged(@NonNull Order order) {
+        if (accounts.isEmpty()) {
+            return;
+        }
+        final String login = order.getAccount().getLogin();
+        if (isWatched(login) && TransactionSynchronizationManager.isSynchronizationActive()) {
+            getChanges().orders(login).add(order.getId());
+        }
+    }
+
+    public void ordersChanged(@NonNull String login, @NonNull Collection<Long> orderIds) {
+        if (isWatched(login) && TransactionSynchronizationManager.isSynchronizationActive()) {
+            getChanges().orders(login).addAll(orderIds);
+        }
+    }
+
+    public void balanceChanged(@NonNull VirtualWallet wallet, long delta) {
+        if (accounts.isEmpty()) {
+            return;
+        }
+        final String login = wallet.getAccount().getLogin();
+        if (isWatched(login) && TransactionSynchronizationManager.isSynchronizationActive()) {
+            getChanges().addDelta(login, wallet.getId(), delta);
+        }
+    }
+
+    public void tradeExecuted(@NonNull Trade trade, @NonNull Order sellOrder, @NonNull Order buyOrder) {
+        if (accounts.isEmpty() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        final String seller = sellOrder.getAccount().getLogin(), buyer = buyOrder.getAccount().getLogin();
+        if (isWatched(seller)) getChanges().addFill(seller, new Fill(sellOrder.getId(), trade.getTradingPair().getId(), Order.Type.SELL,
+                trade.getPrice(), trade.getAmount(), trade.getTotal(), trade.getTime()));
+        if (isWatched(buyer)) getChanges().addFill(buyer, new Fill(buyOrder.getId(), trade.getTradingPair().getId(), Order.Type.BUY,
+                trade.getPrice(), trade.getAmount(), trade.getTotal(), trade.getTime()));
+    }
+
+    private static Balance createBalance(VirtualWallet wallet, BigDecimal delta) {
+        return new Balance(wallet.getCurrency().getId(), wallet.getCurrency().getCode(), delta, wallet.getVirtualBalance());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void poll(Session session, String login, AccountState state, Changes changes, long now) {
+        final List<Trade> trades = session.createQuery("from Trade trade where (trade.seller.id = :account or trade.buyer.id = :account) " +
+                "and trade.id > :last order by trade.id")
+                .setLong("account", state.accountId)
+                .setLong("last", state.lastTradeId)
+                .list();
+        for (Trade trade : trades) {
+            final boolean sold = trade.getSeller().getId() == state.accountId;
+            changes.addFill(login, new Fill(sold ? trade.getSellOrderId() : trade.getBuyOrderId(), trade.getTradingPair().getId(),
+                    sold ? Order.Type.SELL : Order.Type.BUY, trade.getPrice(), trade.getAmount(), trade.getTotal(), trade.getTime()));
+            state.lastTradeId = trade.getId();
+        }
+
+        changes.orders(login).addAll(session.createQuery("select ord.id from Order ord where ord.account.id = :account and ord.updateDate > :since")
+                .setLong("account", state.accountId)
+                .setTimestamp("since", new Date(state.lastPoll - POLL_OVERLAP))
+                .list());
+
+        final List<VirtualWallet> wallets = session.createQuery("from VirtualWallet wallet where wallet.account.id = :account")
+                .setLong("account", state.accountId)
+                .list();
+        for (VirtualWallet wallet : wallets) {
+            final BigDecimal previous = state.balances.put(wallet.getId(), wallet.getVirtualBalance());
+            if (previous != null && previous.compareTo(wallet.getVirtualBalance()) != 0) {
+                changes.addDelta(login, wallet.getId(), Calculator.toUnits(wallet.getVirtualBalance().subtract(previous)));
+            }
+        }
+        state.lastPoll = now;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void publish(Session session, Changes changes) throws Exception {
+        for (Map.Entry<String, List<Fill>> entry : changes.fills.entrySet()) {
+            for (Fill fill : entry.getValue()) streamHub.publish(topic(entry.getKey()), "fill", fill);
+        }
+        for (Map.Entry<String, Set<Long>> entry : changes.orders.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            final List<Order> orders = session.createQuery("from Order ord where ord.id in (:ids) order by ord.id")
+                    .setParameterList("ids", entry.getValue())
+                    .list();
+            for (Order order : orders) streamHub.publish(topic(entry.getKey()), "order", order);
+        }
+        for (Map.Entry<String, Map<Long, Long>> entry : changes.wallets.entrySet()) {
+            final List<VirtualWallet> wallets = session.createQuery("from VirtualWallet wallet where wallet.id in (:ids)")
+                    .setParameterList("ids", entry.getValue().keySet())
+                    .list();
+            for (VirtualWallet wallet : wallets) {
+                streamHub.publish(topic(entry.getKey()), "balance", createBalance(wallet, Calculator.fromUnits(entry.getValue().get(wallet.getId()))));
+            }
+        }
+    }
+
+    @Scheduled(fixedDelay = 250)
+    public void flush() {
+        final Changes changes;
+        synchronized (this) {
+            changes = committed;
+            committed = new Changes();
+        }
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, AccountState>> iterator = accounts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, AccountState> entry = iterator.next();
+            final AccountState state = entry.getValue();
+            if (now - state.watched > SUBSCRIBE_TIMEOUT && !streamHub.hasSubscribers(topic(entry.getKey()))) synchronized (state) {
+                if (now - state.watched > SUBSCRIBE_TIMEOUT) { // Not watched again meanwhile
+                    iterator.remove();
+                    streamHub.reset(topic(entry.getKey())); // Changes are not collected anymore, buffered events can not be continued
+                }
+            }
+        }
+        if (changes.isEmpty() && (orderBookManager != null || accounts.isEmpty())) {
+            return;
+        }
+        try {
+            new TransactionTemplate(transactionManager).execute(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction(TransactionStatus transactionStatus) {
+                    final Session session = sessionFactory.getCurrentSession();
+                    if (orderBookManager == null) for (Map.Entry<String, AccountState> entry : accounts.entrySet()) {
+                        final AccountState state = entry.getValue();
+                        synchronized (state) {
+                            if (state.lastPoll != 0 && now - state.lastPoll >= POLL_INTERVAL) poll(session, entry.getKey(), state, changes, now);
+                        }
+                    }
+                    try {
+                        publish(session, changes);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            log.error("Account stream not published", e);
+        }
+    }
+
+    // Orders and balances are absolute, events published after the sequence may already be included
+    @SuppressWarnings("unchecked")
+    public StreamHub.Snapshot getSnapshot(final @NonNull Account account) throws Exception {
+        final AccountState state = new AccountState(account.getId());
+        final AccountState watched = accounts.putIfAbsent(account.getLogin(), state); // Changes are collected from now on
+        if (watched != null) watched.watched = System.currentTimeMillis();
+        final long seq = streamHub.getSeq(topic(account.getLogin()));
+        final List<Balance> wallets = new ArrayList<>();
+        final List<Order> orders = new TransactionTemplate(transactionManager).execute(new TransactionCallback<List<Order>>() {
+            @Override
+            public List<Order> doInTransaction(TransactionStatus transactionStatus) {
+                final Session session = sessionFactory.getCurrentSession();
+                final List<VirtualWallet> list = session.createQuery("from VirtualWallet wallet where wallet.account.id = :account")
+                        .setLong("account", account.getId())
+                        .list();
+                for (VirtualWallet wallet : list) wallets.add(createBalance(wallet, BigDecimal.ZERO));
+                if (watched == null) synchronized (state) { // Polling starts here
+                    for (VirtualWallet wallet : list) state.balances.put(wallet.getId(), wallet.getVirtualBalance());
+                    final Long lastTradeId = (Long) session.createQuery("select max(trade.id) from Trade trade where trade.seller.id = :account or trade.buyer.id = :account")
+                            .setLong("account", account.getId())
+                            .uniqueResult();
+                    state.lastTradeId = lastTradeId == null ? 0 : lastTradeId;
+                    state.lastPoll = System.currentTimeMillis();
+                }
+                return accountManager.getAccountOrders(account, ORDERS_SIZE);
+            }
+        });
+        return new StreamHub.Snapshot(seq, new Snapshot(orders, convertService.createAccountBalanceInfo(account), wallets));
+    }
+}
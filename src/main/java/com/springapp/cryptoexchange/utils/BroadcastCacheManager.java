@@ -0,0 +1,172 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Local caches kept coherent between instances: evictions are applied at once and published to the bus,
+// invalidations of other instances are applied as they come
+// Keys are versioned: a value read before an invalidation of its key is not put back, even if the event came late
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class BroadcastCacheManager implements CacheManager {
+    static final int STAMPS = 1024; // Keys share versions by hash, collision only skips a put
+
+    private class BroadcastCache implements Cache {
+        final Cache cache;
+        final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+        final AtomicLong cleared = new AtomicLong();
+        final ThreadLocal<Map<Object, Long>> misses = new ThreadLocal<Map<Object, Long>>() {
+            @Override
+            protected Map<Object, Long> initialValue() {
+                return new HashMap<>();
+            }
+        };
+
+        BroadcastCache(Cache cache) {
+            this.cache = cache;
+        }
+
+        private int index(Object key) {
+            return (key.hashCode() & Integer.MAX_VALUE) % STAMPS;
+        }
+
+        private long stamp(Object key) {
+            return stamps.get(index(key)) + cleared.get();
+        }
+
+        @Override
+        public String getName() {
+            return cache.getName();
+        }
+
+        @Override
+        public Object getNativeCache() {
+            return cache.getNativeCache();
+        }
+
+        @Override
+        public ValueWrapper get(Object key) {
+            final ValueWrapper value = cache.get(key);
+            if (value == null) { // Version of the miss, checked by put
+                final Map<Object, Long> misses = this.misses.get();
+                if (misses.size() > 64) misses.clear(); // Not put after failures
+                misses.put(key, stamp(key));
+            }
+            return value;
+        }
+
+        @Override
+        public <T> T get(Object key, Class<T> type) {
+            return cache.get(key, type);
+        }
+
+        @Override
+        public void put(Object key, Object value) {
+            final Long missed = misses.get().remove(key);
+            if (missed != null && missed != stamp(key)) {
+                log.debug(String.format("Stale value of %s/%s not cached", getName(), key));
+                return;
+            }
+            cache.put(key, value);
+        }
+
+        void invalidate(Object key) {
+            stamps.incrementAndGet(index(key));
+            cache.evict(key);
+        }
+
+        void invalidateAll() {
+            cleared.incrementAndGet();
+            cache.clear();
+        }
+
+        @Override
+        public void evict(Object key) {
+            invalidate(key);
+            invalidationBus.publish(new InvalidationBus.Invalidation(getName(), key));
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+            invalidationBus.publish(new InvalidationBus.Invalidation(getName(), null));
+        }
+    }
+
+    final CacheManager cacheManager;
+    final ConcurrentMap<String, BroadcastCache> caches = new ConcurrentHashMap<>();
+
+    @Autowired
+    InvalidationBus invalidationBus;
+
+    public BroadcastCacheManager(@NonNull CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    @PostConstruct
+    public void init() {
+        invalidationBus.setListener(new InvalidationBus.Listener() {
+            @Override
+            public void invalidate(List<InvalidationBus.Invalidation> invalidations) {
+                BroadcastCacheManager.this.invalidate(invalidations);
+            }
+        });
+    }
+
+    private void invalidate(Collection<InvalidationBus.Invalidation> invalidations) {
+        for (InvalidationBus.Invalidation invalidation : invalidations) {
+            final BroadcastCache cache = getBroadcastCache(invalidation.getCache());
+            if (cache == null) continue;
+            if (invalidation.getKey() == null) {
+                cache.invalidateAll();
+            } else {
+                cache.invalidate(invalidation.getKey());
+            }
+        }
+    }
+
+    // Same as evict/clear of every cache, published to the bus as one batch
+    public void evict(@NonNull Collection<InvalidationBus.Invalidation> invalidations) {
+        invalidate(invalidations);
+        invalidationBus.publish(invalidations);
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        return getBroadcastCache(name);
+    }
+
+    private BroadcastCache getBroadcastCache(String name) {
+        BroadcastCache cache = caches.get(name);
+        if (cache == null) {
+            final Cache target = cacheManager.getCache(name);
+            if (target == null) {
+                return null;
+            }
+            final BroadcastCache newCache = new BroadcastCache(target);
+            cache = caches.putIfAbsent(name, newCache);
+            if (cache == null) cache = newCache;
+        }
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return cacheManager.getCacheNames();
+    }
+}
@@ -1,44 +1,183 @@
 package com.springapp.cryptoexchange.utils;
 
 import com.springapp.cryptoexchange.database.model.Account;
+import com.springapp.cryptoexchange.database.model.Candle;
 import com.springapp.cryptoexchange.database.model.Order;
 import com.springapp.cryptoexchange.database.model.TradingPair;
+import lombok.AccessLevel;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Evictions are collected per transaction, de-duplicated and applied once it completes,
+// so readers can not cache data of an uncommitted transaction; applied at once outside of transactions
 @Service
+@FieldDefaults(level = AccessLevel.PRIVATE)
 public class CacheCleaner {
+    @Value
+    public static class Stats {
+        long requested; // Evictions asked for
+        long applied; // Evictions done after de-duplication
+        long cleared; // Whole caches cleared
+        long transactions; // Batches applied
+    }
+
+    private static class Batch {
+        final Map<String, Set<Object>> keys = new LinkedHashMap<>();
+        final Set<String> cleared = new LinkedHashSet<>();
+    }
+
     @Autowired
-    CacheManager cacheManager;
+    BroadcastCacheManager cacheManager;
+
+    final AtomicLong requested = new AtomicLong(), applied = new AtomicLong(), cleared = new AtomicLong(), transactions = new AtomicLong();
+
+    public Stats getStats() {
+        return new Stats(requested.get(), applied.get(), cleared.get(), transactions.get());
+    }
+
+    private void apply(Batch batch) {
+        final List<InvalidationBus.Invalidation> invalidations = new ArrayList<>();
+        for (String cache : batch.cleared) invalidations.add(new InvalidationBus.Invalidation(cache, null));
+        cleared.addAndGet(batch.cleared.size());
+        for (Map.Entry<String, Set<Object>> keys : batch.keys.entrySet()) {
+            if (batch.cleared.contains(keys.getKey())) continue;
+            for (Object key : keys.getValue()) invalidations.add(new InvalidationBus.Invalidation(keys.getKey(), key));
+            applied.addAndGet(keys.getValue().size());
+        }
+        cacheManager.evict(invalidations); // Synchronization is cleared by now: sent to the peers at once, in full datagrams
+    }
+
+    private Batch getBatch() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        Batch batch = (Batch) TransactionSynchronizationManager.getResource(this);
+        if (batch == null) {
+            final Batch newBatch = new Batch();
+            TransactionSynchronizationManager.bindResource(this, newBatch);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) { // Rolled back too: order books may have moved
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CacheCleaner.this);
+                    transactions.incrementAndGet();
+                    apply(newBatch);
+                }
+            });
+            batch = newBatch;
+        }
+        return batch;
+    }
+
+    private void evict(String cache, Object key) {
+        requested.incrementAndGet();
+        final Batch batch = getBatch();
+        if (batch == null) {
+            cacheManager.getCache(cache).evict(key);
+            applied.incrementAndGet();
+            return;
+        }
+        Set<Object> keys = batch.keys.get(cache);
+        if (keys == null) {
+            keys = new LinkedHashSet<>();
+            batch.keys.put(cache, keys);
+        }
+        keys.add(key);
+    }
+
+    private void clear(String cache) {
+        requested.incrementAndGet();
+        final Batch batch = getBatch();
+        if (batch == null) {
+            cacheManager.getCache(cache).clear();
+            cleared.incrementAndGet();
+            return;
+        }
+        batch.cleared.add(cache);
+    }
 
     public void cryptoBalanceEvict() {
-        cacheManager.getCache("getCryptoBalance").clear();
-        cacheManager.getCache("getTransactions").clear();
-        cacheManager.getCache("getAccountBalances").clear();
+        clear("getCryptoBalance");
+        clear("getTransactions");
+        clear("getAccountBalances");
+    }
+
+    public void cryptoBalanceEvict(long virtualWalletId, String login, long currencyId) {
+        evict("getCryptoBalance", virtualWalletId);
+        evict("getTransactions", login + "/" + currencyId);
+        evict("getAccountBalances", login);
     }
 
     private void clearOrderCache(Order order) {
         String login = order.getAccount().getLogin();
-        Cache balance = cacheManager.getCache("getAccountBalances"),
-                orders = cacheManager.getCache("getAccountOrders"),
-                ordersByPair = cacheManager.getCache("getAccountOrdersByPair");
-        balance.evict(login);
-        ordersByPair.evict(login + "/" + order.getTradingPair().getId());
-        orders.evict(login);
+        evict("getAccountBalances", login);
+        evict("getAccountOrdersByPair", login + "/" + order.getTradingPair().getId());
+        evict("getAccountOrders", login);
+    }
+
+    private void clearHistoryCache(Order order) {
+        String login = order.getAccount().getLogin();
+        evict("getAccountHistory", login);
+        evict("getAccountHistoryByPair", login + "/" + order.getTradingPair().getId());
+    }
+
+    private void evictDepthResponses(long tradingPairId) { // Responses of every limit and tick are keyed with the version
+        evict("getMarketDepthVersion", tradingPairId);
+    }
+
+    public void marketDepthEvict(long tradingPairId) {
+        evictDepthResponses(tradingPairId);
+    }
+
+    public void orderEvict(Order order) {
+        clearOrderCache(order);
+        evictDepthResponses(order.getTradingPair().getId());
+        evict("getMarketHistory", order.getTradingPair().getId());
+    }
+
+    public void ordersEvict(Collection<String> logins, Collection<Long> tradingPairIds) {
+        for (String login : logins) {
+            evict("getAccountBalances", login);
+            evict("getAccountOrders", login);
+            for (long tradingPairId : tradingPairIds) evict("getAccountOrdersByPair", login + "/" + tradingPairId);
+        }
+        for (long tradingPairId : tradingPairIds) {
+            evictDepthResponses(tradingPairId);
+            evict("getMarketHistory", tradingPairId);
+        }
     }
 
     public void orderExecutionEvict(Order firstOrder, Order secondOrder) {
         clearOrderCache(firstOrder);
         clearOrderCache(secondOrder);
+        clearHistoryCache(firstOrder);
+        clearHistoryCache(secondOrder);
+    }
+
+    private void evictChartResponses(long tradingPairId, Candle.Interval interval) {
+        for (ConvertService.ChartFormat format : ConvertService.ChartFormat.values()) evict("getMarketChartResponse", tradingPairId + "/" + interval.getCode() + "/" + format);
+    }
+
+    public void marketChartEvict(long tradingPairId, Candle.Interval interval) {
+        evict("getMarketChartData", tradingPairId + "/" + interval.getCode());
+        evictChartResponses(tradingPairId, interval);
+    }
+
+    public void marketChartResponseEvict(long tradingPairId) { // Open candles changed
+        for (Candle.Interval interval : Candle.Interval.values()) evictChartResponses(tradingPairId, interval);
     }
 
     public void marketPricesEvict(TradingPair tradingPair) {
-        cacheManager.getCache("getTradingPairInfo").evict(tradingPair.getId());
+        evict("getTradingPairInfo", tradingPair.getId());
     }
 
     public void balancesEvict(Account account) {
-        cacheManager.getCache("getAccountBalances").evict(account.getLogin());
+        evict("getAccountBalances", account.getLogin());
     }
 }
@@ -3,12 +3,18 @@ package com.springapp.cryptoexchange.utils;
 import com.springapp.cryptoexchange.database.model.Order;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 
 // Just some math
 public class Calculator {
     public static final BigDecimal ONE_HUNDRED = BigDecimal.valueOf(100.0);
 
+    // Fixed-point representation: long count of 1e-8 units
+    public static final int SCALE = 8;
+    public static final long UNIT = 100000000L;
+    private static final long ONE_HUNDRED_UNITS = 100 * UNIT;
+
     public static BigDecimal fee(BigDecimal amount, BigDecimal feePercent) {
         return amount.divide(ONE_HUNDRED, 8, RoundingMode.FLOOR).multiply(feePercent);
     }
@@ -26,4 +32,137 @@ public class Calculator {
     public static BigDecimal totalRequired(Order.Type orderType, BigDecimal amount, BigDecimal price) {
         return orderType == Order.Type.BUY ? buyTotal(amount, price) : amount;
     }
+
+    public static long toUnits(BigDecimal value) {
+        final BigInteger unscaled = value.setScale(SCALE, RoundingMode.FLOOR).unscaledValue();
+        if (unscaled.bitLength() > 63) {
+            throw new ArithmeticException("Fixed-point overflow: " + value);
+        }
+        return unscaled.longValue();
+    }
+
+    public static BigDecimal fromUnits(long units) {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+
+    public static long addExact(long a, long b) {
+        final long result = a + b;
+        if (((a ^ result) & (b ^ result)) < 0) {
+            throw new ArithmeticException("Fixed-point overflow");
+        }
+        return result;
+    }
+
+    public static long subtractExact(long a, long b) {
+        final long result = a - b;
+        if (((a ^ b) & (a ^ result)) < 0) {
+            throw new ArithmeticException("Fixed-point overflow");
+        }
+        return result;
+    }
+
+    public static long multiplyExact(long a, long b) {
+        final long result = a * b;
+        if (((Math.abs(a) | Math.abs(b)) >>> 31 != 0) && ((b != 0 && result / b != a) || (a == Long.MIN_VALUE && b == -1))) {
+            throw new ArithmeticException("Fixed-point overflow");
+        }
+        return result;
+    }
+
+    private static long magnitude(long value) {
+        if (value == Long.MIN_VALUE) {
+            throw new ArithmeticException("Fixed-point overflow");
+        }
+        return Math.abs(value);
+    }
+
+    // Applies rounding to non-negative quotient of (quotient * divisor + remainder) / divisor
+    private static long round(long quotient, long remainder, long divisor, boolean negative, RoundingMode roundingMode) {
+        if (remainder == 0) {
+            return quotient;
+        }
+        final boolean increment;
+        switch (roundingMode) {
+            case UP:
+                increment = true;
+                break;
+            case DOWN:
+                increment = false;
+                break;
+            case CEILING:
+                increment = !negative;
+                break;
+            case FLOOR:
+                increment = negative;
+                break;
+            case HALF_UP:
+            case HALF_DOWN:
+            case HALF_EVEN:
+                final int half = Long.compare(remainder, divisor - remainder);
+                if (half != 0) {
+                    increment = half > 0;
+                } else if (roundingMode == RoundingMode.HALF_EVEN) {
+                    increment = (quotient & 1) != 0;
+                } else {
+                    increment = roundingMode == RoundingMode.HALF_UP;
+                }
+                break;
+            default:
+                throw new ArithmeticException("Rounding necessary");
+        }
+        return increment ? addExact(quotient, 1) : quotient;
+    }
+
+    // a * b of two fixed-point values, without 128-bit intermediate
+    public static long multiply(long a, long b, RoundingMode roundingMode) {
+        final boolean negative = (a < 0) != (b < 0);
+        final long x = magnitude(a), y = magnitude(b);
+        final long xHigh = x / UNIT, xLow = x % UNIT, yHigh = y / UNIT, yLow = y % UNIT;
+        final long low = xLow * yLow; // < 1e16
+        long quotient = multiplyExact(multiplyExact(xHigh, yHigh), UNIT);
+        quotient = addExact(quotient, multiplyExact(xHigh, yLow));
+        quotient = addExact(quotient, multiplyExact(xLow, yHigh));
+        quotient = addExact(quotient, low / UNIT);
+        final long result = round(quotient, low % UNIT, UNIT, negative, roundingMode);
+        return negative ? -result : result;
+    }
+
+    // a / b of two fixed-point values
+    public static long divide(long a, long b, RoundingMode roundingMode) {
+        if (b == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        final boolean negative = (a < 0) != (b < 0);
+        final long x = magnitude(a), y = magnitude(b);
+        if (y > Long.MAX_VALUE / 10) { // Remainder digits do not fit into long
+            return toUnits(fromUnits(a).divide(fromUnits(b), SCALE, roundingMode));
+        }
+        long quotient = x / y, remainder = x % y;
+        for (int i = 0; i < SCALE; i++) {
+            remainder *= 10;
+            quotient = addExact(multiplyExact(quotient, 10), remainder / y);
+            remainder %= y;
+        }
+        final long result = round(quotient, remainder, y, negative, roundingMode);
+        return negative ? -result : result;
+    }
+
+    public static long fee(long amount, long feePercent) {
+        return multiply(divide(amount, ONE_HUNDRED_UNITS, RoundingMode.FLOOR), feePercent, RoundingMode.FLOOR);
+    }
+    public static long withFee(long amount, long feePercent) {
+        return addExact(amount, fee(amount, feePercent));
+    }
+    public static long withoutFee(long amount, long feePercent) {
+        return subtractExact(amount, fee(amount, feePercent));
+    }
+
+    // Rounded down, so totals of partial fills never exceed the locked total of the order
+    public static long buyTotal(long amount, long price) {
+        return multiply(amount, price, RoundingMode.FLOOR);
+    }
+
+    public static long totalRequired(Order.Type orderType, long amount, long price) {
+        return orderType == Order.Type.BUY ? buyTotal(amount, price) : amount;
+    }
 }
@@ -11,6 +11,9 @@ import java.util.Date;
 import java.util.List;
 
 public interface ConvertService {
+    int[] DEPTH_LIMITS = {10, 20, 50, 100, 200}; // Depth sizes served, every size and grouping is cached under its own key of the pair's depth version
+    long[] DEPTH_TICKS = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L}; // Grouping ticks in units, 0.00000001 to 100
+
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
@@ -19,8 +22,15 @@ public interface ConvertService {
         BigDecimal price;
         BigDecimal amount;
         Date time;
+        Long id; // Trade id, page cursor is "time_id" of the last entry
         public MarketHistory(Order order) {
-            this(order.getType(), order.getPrice(), order.getCompletedAmount(), order.getCloseDate());
+            this(order.getType(), order.getPrice(), order.getCompletedAmount(), order.getCloseDate(), null);
+        }
+        public MarketHistory(Trade trade) {
+            this(trade.getType(), trade.getPrice(), trade.getAmount(), trade.getTime(), trade.getId());
+        }
+        public MarketHistory(Trade trade, Account account) { // Type is the side of account
+            this(trade.getBuyer().getId() == account.getId() ? Order.Type.BUY : Order.Type.SELL, trade.getPrice(), trade.getAmount(), trade.getTime(), trade.getId());
         }
     }
 
@@ -43,6 +53,36 @@ public interface ConvertService {
         List<Entry> buyOrders;
     }
 
+    @Value
+    public static class BookOrder implements Serializable {
+        long id;
+        BigDecimal price, amount; // Remaining amount
+        Date time;
+    }
+
+    @Value
+    public static class OrderBookSnapshot implements Serializable { // Every resting order, best price and oldest first
+        long tradingPairId;
+        long sequence; // Book version, grows with every change
+        List<BookOrder> bids, asks;
+    }
+
+    @Value
+    public static class ChartData implements Serializable { // Parallel columns, oldest first
+        long[] time;
+        double[] open, high, low, close, volume;
+    }
+
+    public enum ChartFormat {
+        HIGHCHARTS, // [[time, open, high, low, close, volume], ...]
+        COLUMNAR, // ChartData as JSON
+        BINARY; // ChartData as big-endian int count, longs of time, then doubles column by column
+
+        public static ChartFormat of(@NonNull String format) {
+            return valueOf(format.toUpperCase());
+        }
+    }
+
     @Value
     @FieldDefaults(level = AccessLevel.PRIVATE)
     public static class AccountBalance implements Serializable  {
@@ -52,7 +92,12 @@ public interface ConvertService {
     }
 
     public Depth createDepth(TradingPair tradingPair, int depthSize) throws Exception;
+    public Depth createDepth(TradingPair tradingPair, int depthSize, BigDecimal group) throws Exception; // Levels merged by price tick, null for none
+    public OrderBookSnapshot createOrderBookSnapshot(TradingPair tradingPair) throws Exception;
     public List<MarketHistory> createHistory(Criteria criteria) throws Exception;
+    public List<MarketHistory> createAccountHistory(List<Trade> trades, Account account) throws Exception;
     public List<AccountBalance> createAccountBalanceInfo(Account account) throws Exception;
     public Object[][] createHighChartsOHLCData(List<Candle> candleList) throws Exception;
+    public ChartData createChartData(List<Candle> candleList, int maxPoints) throws Exception;
+    public byte[] encodeChartData(ChartData chartData) throws Exception;
 }
@@ -6,6 +6,7 @@ import com.springapp.cryptoexchange.database.model.Currency;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
 import org.hibernate.Criteria;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Projections;
@@ -14,7 +15,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.*;
@@ -22,6 +26,8 @@ import java.util.concurrent.*;
 @CommonsLog
 @Service
 public class ConvertServiceImpl implements ConvertService { // Convert layer
+    static final long BOOK_SNAPSHOT_AGE = 1000; // Copy of a busy book is shared for up to 1s
+
     @Autowired
     HistoryManager historyManager;
 
@@ -41,43 +47,108 @@ public class ConvertServiceImpl implements ConvertService { // Convert layer
     @Autowired
     SessionFactory sessionFactory;
 
+    @Autowired(required = false)
+    OrderBookManager orderBookManager; // Master only
+
+    private static List<Depth.Entry> makeDepth(List<OrderBook.Level> levels) {
+        final List<Depth.Entry> depth = new ArrayList<>(levels.size());
+        for (OrderBook.Level level : levels) {
+            final Depth.Entry entry = new Depth.Entry();
+            entry.setPrice(Calculator.fromUnits(level.getPrice()));
+            entry.setAmount(Calculator.fromUnits(level.getAmount()));
+            depth.add(entry);
+        }
+        return depth;
+    }
+
     @SuppressWarnings("unchecked")
-    private List<Depth.Entry> makeDepth(TradingPair tradingPair, int depthSize, Order.Type orderType) {
+    private List<Depth.Entry> makeDepth(TradingPair tradingPair, int depthSize, long tick, Order.Type orderType) {
         Session session = sessionFactory.getCurrentSession();
-        return session.createQuery("select ord.price as price, sum(ord.amount - ord.completedAmount) as amount from Order ord where " +
+        final Query query = session.createQuery("select ord.price as price, sum(ord.amount - ord.completedAmount) as amount from Order ord where " +
                 "tradingPair = :tradingPair and type = :type and status in :statuses group by price " +
                 "order by price " + (orderType.equals(Order.Type.BUY) ? "desc" : "asc"))
                 .setParameter("tradingPair", tradingPair)
                 .setParameter("type", orderType)
                 .setParameterList("statuses", Arrays.asList(Order.Status.OPEN, Order.Status.PARTIALLY_COMPLETED))
-                .setMaxResults(depthSize)
-                .setResultTransformer(Transformers.aliasToBean(Depth.Entry.class))
-                .list();
+                .setResultTransformer(Transformers.aliasToBean(Depth.Entry.class));
+        if (tick == 1) {
+            return query.setMaxResults(depthSize).list();
+        }
+        final Map<Long, Long> levels = new LinkedHashMap<>(); // Best first
+        for (Depth.Entry entry : (List<Depth.Entry>) query.list()) levels.put(Calculator.toUnits(entry.getPrice()), Calculator.toUnits(entry.getAmount()));
+        return makeDepth(OrderBook.group(levels.entrySet(), orderType, tick, depthSize));
+    }
+
+    private static long toTick(BigDecimal tick) {
+        if (tick == null) {
+            return 1;
+        }
+        final long units = Calculator.toUnits(tick);
+        Assert.isTrue(Arrays.binarySearch(DEPTH_TICKS, units) >= 0 && Calculator.fromUnits(units).compareTo(tick) == 0, "Invalid grouping tick");
+        return units;
     }
 
-    @SuppressWarnings("unchecked")
     @Transactional(readOnly = true)
     public Depth createDepth(TradingPair tradingPair, final int depthSize) throws Exception {
+        return createDepth(tradingPair, depthSize, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Transactional(readOnly = true)
+    public Depth createDepth(TradingPair tradingPair, final int depthSize, BigDecimal group) throws Exception {
         final long start = System.nanoTime();
+        final long tick = toTick(group);
         final Depth depth = new Depth();
-        depth.buyOrders = makeDepth(tradingPair, depthSize, Order.Type.BUY);
-        depth.sellOrders = makeDepth(tradingPair, depthSize, Order.Type.SELL);
+        if (orderBookManager != null) { // Aggregated levels are maintained by matching
+            final OrderBook orderBook = orderBookManager.getOrderBook(tradingPair);
+            depth.buyOrders = makeDepth(orderBook.getDepth(Order.Type.BUY, depthSize, tick));
+            depth.sellOrders = makeDepth(orderBook.getDepth(Order.Type.SELL, depthSize, tick));
+        } else {
+            depth.buyOrders = makeDepth(tradingPair, depthSize, tick, Order.Type.BUY);
+            depth.sellOrders = makeDepth(tradingPair, depthSize, tick, Order.Type.SELL);
+        }
         log.info(String.format("Depth generated in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
         return depth;
     }
 
+    private static List<BookOrder> makeBookOrders(List<OrderBook.Entry> entries) {
+        final List<BookOrder> orders = new ArrayList<>(entries.size());
+        for (OrderBook.Entry entry : entries) {
+            orders.add(new BookOrder(entry.getOrderId(), Calculator.fromUnits(entry.getPrice()), Calculator.fromUnits(entry.getRemainingAmount()), entry.getOpenDate()));
+        }
+        return orders;
+    }
+
+    public OrderBookSnapshot createOrderBookSnapshot(@NonNull TradingPair tradingPair) throws Exception {
+        Assert.notNull(orderBookManager, "Order book is not available on this node");
+        final long start = System.nanoTime();
+        final OrderBook.Snapshot snapshot = orderBookManager.getOrderBook(tradingPair).getSnapshot(BOOK_SNAPSHOT_AGE);
+        final OrderBookSnapshot result = new OrderBookSnapshot(tradingPair.getId(), snapshot.getVersion(),
+                makeBookOrders(snapshot.getBids()), makeBookOrders(snapshot.getAsks()));
+        log.info(String.format("Order book snapshot generated in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return result;
+    }
+
     @Transactional(readOnly = true)
     @SuppressWarnings("unchecked")
     public List<MarketHistory> createHistory(@NonNull Criteria criteria) throws Exception {
         return criteria.setProjection(Projections.projectionList()
                     .add(Projections.property("type"), "type")
                     .add(Projections.property("price"), "price")
-                    .add(Projections.property("completedAmount"), "amount")
-                    .add(Projections.property("closeDate"), "time"))
+                    .add(Projections.property("amount"), "amount")
+                    .add(Projections.property("time"), "time")
+                    .add(Projections.property("id"), "id"))
                 .setResultTransformer(Transformers.aliasToBean(MarketHistory.class))
                 .list();
     }
 
+    @Transactional(readOnly = true)
+    public List<MarketHistory> createAccountHistory(@NonNull List<Trade> trades, @NonNull Account account) throws Exception {
+        final List<MarketHistory> history = new ArrayList<>(trades.size());
+        for (Trade trade : trades) history.add(new MarketHistory(trade, account));
+        return history;
+    }
+
     @Transactional
     public List<AccountBalance> createAccountBalanceInfo(final @NonNull Account account) throws Exception {
         final long start = System.nanoTime();
@@ -138,4 +209,99 @@ public class ConvertServiceImpl implements ConvertService { // Convert layer
         log.info(String.format("Chart data generated in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
         return result;
     }
+
+    // Largest-Triangle-Three-Buckets on close prices: keeps the candles that shape the line, first and last always kept
+    // Returns bucket bounds, bucket i is [bounds[i], bounds[i + 1]) and its candle is selected[i]
+    private static int[][] downsample(long[] time, double[] close, int threshold) {
+        final int length = close.length;
+        final int[] selected = new int[threshold], bounds = new int[threshold + 1];
+        final double every = (double) (length - 2) / (threshold - 2);
+        int a = 0;
+        bounds[0] = 0;
+        bounds[1] = 1;
+        for (int i = 0; i < threshold - 2; i++) {
+            final int rangeStart = (int) (i * every) + 1, rangeEnd = (int) ((i + 1) * every) + 1;
+            final int averageStart = rangeEnd, averageEnd = Math.min((int) ((i + 2) * every) + 1, length);
+            double averageX = 0, averageY = 0;
+            for (int j = averageStart; j < averageEnd; j++) {
+                averageX += time[j];
+                averageY += close[j];
+            }
+            averageX /= Math.max(1, averageEnd - averageStart);
+            averageY /= Math.max(1, averageEnd - averageStart);
+
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                final double area = Math.abs((time[a] - averageX) * (close[j] - close[a]) - (time[a] - time[j]) * (averageY - close[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            selected[i + 1] = next;
+            bounds[i + 2] = rangeEnd;
+            a = next;
+        }
+        selected[threshold - 1] = length - 1;
+        bounds[threshold - 1] = length - 1;
+        bounds[threshold] = length;
+        return new int[][]{selected, bounds};
+    }
+
+    @Override
+    public ChartData createChartData(final @NonNull List<Candle> candleList, int maxPoints) throws Exception {
+        final long start = System.nanoTime();
+        final int length = candleList.size();
+        final long[] time = new long[length];
+        final double[] open = new double[length], high = new double[length], low = new double[length], close = new double[length], volume = new double[length];
+        for (int i = 0; i < length; i++) { // Newest first in list
+            final Candle candle = candleList.get(length - i - 1);
+            time[i] = candle.getOpenTime().getTime();
+            open[i] = candle.getOpen().doubleValue();
+            high[i] = candle.getHigh().doubleValue();
+            low[i] = candle.getLow().doubleValue();
+            close[i] = candle.getClose().doubleValue();
+            volume[i] = candle.getVolume().doubleValue();
+        }
+        if (maxPoints < 3 || length <= maxPoints) {
+            return new ChartData(time, open, high, low, close, volume);
+        }
+
+        // Selected candles keep their time, open and close, high, low and volume cover their whole bucket
+        final int[][] sample = downsample(time, close, maxPoints);
+        final int[] selected = sample[0], bounds = sample[1];
+        final ChartData data = new ChartData(new long[maxPoints], new double[maxPoints], new double[maxPoints], new double[maxPoints], new double[maxPoints], new double[maxPoints]);
+        for (int i = 0; i < maxPoints; i++) {
+            final int index = selected[i];
+            double bucketHigh = high[index], bucketLow = low[index], bucketVolume = 0;
+            for (int j = bounds[i]; j < bounds[i + 1]; j++) {
+                bucketHigh = Math.max(bucketHigh, high[j]);
+                bucketLow = Math.min(bucketLow, low[j]);
+                bucketVolume += volume[j];
+            }
+            data.getTime()[i] = time[index];
+            data.getOpen()[i] = open[index];
+            data.getHigh()[i] = bucketHigh;
+            data.getLow()[i] = bucketLow;
+            data.getClose()[i] = close[index];
+            data.getVolume()[i] = bucketVolume;
+        }
+        log.info(String.format("Chart data downsampled from %d to %d candles in %d ms", length, maxPoints, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return data;
+    }
+
+    @Override
+    public byte[] encodeChartData(final @NonNull ChartData chartData) throws Exception {
+        final int length = chartData.getTime().length;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4 + length * 6 * 8);
+        try (DataOutputStream output = new DataOutputStream(buffer)) {
+            output.writeInt(length);
+            for (long time : chartData.getTime()) output.writeLong(time);
+            for (double[] column : new double[][]{chartData.getOpen(), chartData.getHigh(), chartData.getLow(), chartData.getClose(), chartData.getVolume()}) {
+                for (double value : column) output.writeDouble(value);
+            }
+        }
+        return buffer.toByteArray();
+    }
 }
@@ -0,0 +1,211 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.SettingsManager;
+import com.springapp.cryptoexchange.database.model.Account;
+import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.database.model.TradingPair;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.hibernate.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Trade history read in keyset batches, each in its own short transaction of a stateless session, and written row by row:
+// no connection is held while the client downloads, concurrent exports are limited
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class HistoryExporter {
+    static final int BATCH_SIZE = 1000, MAX_EXPORTS = 4;
+    public static final long MAX_RANGE = TimeUnit.DAYS.toMillis(31); // Of market exports
+    static final String SELECT = "select trade.id, trade.time, trade.type, trade.price, trade.amount, trade.total, trade.tradingPair.id from Trade trade where ";
+    static final String AFTER = " and (trade.time > :time or (trade.time = :time and trade.id > :id))";
+    static final String ORDER = " order by trade.time, trade.id";
+
+    public enum Format {
+        CSV("text/csv", "csv"), NDJSON("application/x-ndjson", "ndjson");
+
+        final String contentType, extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public static Format of(@NonNull String format) {
+            for (Format value : values()) if (value.extension.equalsIgnoreCase(format)) return value;
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    SettingsManager settingsManager;
+
+    final Semaphore exports = new Semaphore(MAX_EXPORTS);
+
+    private static int compare(Object[] first, Object[] second) { // By time, then id
+        final int compare = ((Date) first[1]).compareTo((Date) second[1]);
+        return compare != 0 ? compare : Long.compare((Long) first[0], (Long) second[0]);
+    }
+
+    // Rows of one query by time and id, next batch is read after the last row of the previous one
+    private class Batches {
+        final String condition;
+        final Map<String, Object> parameters;
+        final Deque<Object[]> rows = new ArrayDeque<>(BATCH_SIZE);
+        Object[] last;
+        boolean done;
+
+        Batches(String condition, Map<String, Object> parameters) {
+            this.condition = condition;
+            this.parameters = parameters;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void fetch() {
+            final StatelessSession session = sessionFactory.openStatelessSession();
+            final Transaction transaction = session.beginTransaction();
+            try {
+                final Query query = session.createQuery(SELECT + condition + (last == null ? "" : AFTER) + ORDER)
+                        .setReadOnly(true)
+                        .setMaxResults(BATCH_SIZE);
+                for (Map.Entry<String, Object> parameter : parameters.entrySet()) query.setParameter(parameter.getKey(), parameter.getValue());
+                if (last != null) query.setTimestamp("time", (Date) last[1]).setLong("id", (Long) last[0]);
+                final List<Object[]> batch = query.list();
+                rows.addAll(batch);
+                done = batch.size() < BATCH_SIZE;
+                if (!batch.isEmpty()) last = batch.get(batch.size() - 1);
+            } finally {
+                transaction.rollback(); // Read only
+                session.close();
+            }
+        }
+
+        Object[] peek() {
+            if (rows.isEmpty() && !done) fetch();
+            return rows.peekFirst();
+        }
+
+        Object[] poll() {
+            final Object[] row = peek();
+            if (row != null) rows.removeFirst();
+            return row;
+        }
+    }
+
+    private void acquire() {
+        if (!exports.tryAcquire()) throw new IllegalStateException("Too many exports in progress, try again later");
+    }
+
+    private static class RowWriter {
+        final Writer writer;
+        final Format format;
+        final Map<Long, String> names = new HashMap<>();
+        final SettingsManager settingsManager;
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        long rows;
+
+        RowWriter(Writer writer, Format format, SettingsManager settingsManager) throws IOException {
+            this.writer = writer;
+            this.format = format;
+            this.settingsManager = settingsManager;
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            if (format == Format.CSV) writer.write("id,time,pair,type,price,amount,total\n");
+        }
+
+        String getName(long tradingPairId) {
+            String name = names.get(tradingPairId);
+            if (name == null) {
+                final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+                name = tradingPair == null ? Long.toString(tradingPairId) : tradingPair.getName();
+                names.put(tradingPairId, name);
+            }
+            return name;
+        }
+
+        void write(Object[] row, Order.Type type) throws IOException {
+            final String name = getName((Long) row[6]);
+            final String price = ((BigDecimal) row[3]).toPlainString(), amount = ((BigDecimal) row[4]).toPlainString(), total = ((BigDecimal) row[5]).toPlainString();
+            if (format == Format.CSV) {
+                writer.write(String.format("%d,%s,\"%s\",%s,%s,%s,%s\n", row[0], dateFormat.format((Date) row[1]), name.replace("\"", "\"\""), type, price, amount, total));
+            } else {
+                writer.write(String.format("{\"id\":%d,\"time\":%d,\"pair\":\"%s\",\"type\":\"%s\",\"price\":%s,\"amount\":%s,\"total\":%s}\n",
+                        row[0], ((Date) row[1]).getTime(), name.replace("\\", "\\\\").replace("\"", "\\\""), type, price, amount, total));
+            }
+            rows++;
+        }
+    }
+
+    // Type is the taker side, trades of [from, to) within MAX_RANGE
+    public long exportMarketHistory(@NonNull TradingPair tradingPair, @NonNull Date from, @NonNull Date to, @NonNull Format format, @NonNull Writer writer) throws Exception {
+        Assert.isTrue(!from.after(to) && to.getTime() - from.getTime() <= MAX_RANGE, "Invalid range");
+        acquire();
+        try {
+            final Map<String, Object> parameters = new HashMap<>();
+            parameters.put("tradingPairId", tradingPair.getId());
+            parameters.put("from", from);
+            parameters.put("to", to);
+            final Batches trades = new Batches("trade.tradingPair.id = :tradingPairId and trade.time >= :from and trade.time < :to", parameters);
+            final RowWriter rowWriter = new RowWriter(writer, format, settingsManager);
+            for (Object[] row = trades.poll(); row != null; row = trades.poll()) rowWriter.write(row, (Order.Type) row[2]);
+            writer.flush();
+            log.info(String.format("Market history exported: %d trades of %s", rowWriter.rows, tradingPair));
+            return rowWriter.rows;
+        } finally {
+            exports.release();
+        }
+    }
+
+    // Type is the side of account, sides are read by their own indexes and merged
+    public long exportAccountHistory(@NonNull Account account, TradingPair tradingPair, @NonNull Format format, @NonNull Writer writer) throws Exception {
+        final String pairCondition = tradingPair == null ? "" : " and trade.tradingPair.id = :tradingPairId";
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("accountId", account.getId());
+        if (tradingPair != null) parameters.put("tradingPairId", tradingPair.getId());
+        acquire();
+        try {
+            final Batches sold = new Batches("trade.seller.id = :accountId" + pairCondition, parameters),
+                    bought = new Batches("trade.buyer.id = :accountId" + pairCondition, parameters);
+            final RowWriter rowWriter = new RowWriter(writer, format, settingsManager);
+            Object[] sell = sold.peek(), buy = bought.peek();
+            while (sell != null || buy != null) {
+                final int compare = sell == null ? 1 : buy == null ? -1 : compare(sell, buy);
+                if (compare < 0) {
+                    rowWriter.write(sold.poll(), Order.Type.SELL);
+                } else {
+                    rowWriter.write(bought.poll(), Order.Type.BUY); // Account traded with itself: written once
+                    if (compare == 0) sold.poll();
+                }
+                sell = sold.peek();
+                buy = bought.peek();
+            }
+            writer.flush();
+            log.info(String.format("Account history exported: %d trades of %s", rowWriter.rows, account.getLogin()));
+            return rowWriter.rows;
+        } finally {
+            exports.release();
+        }
+    }
+}
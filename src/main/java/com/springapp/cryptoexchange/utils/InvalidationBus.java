@@ -0,0 +1,24 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.Value;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+
+// Carries cache invalidations between instances: published after commit of the changing transaction
+public interface InvalidationBus {
+    @Value
+    public static class Invalidation implements Serializable {
+        String cache;
+        Object key; // Long or String, null clears the whole cache
+    }
+
+    public static interface Listener {
+        void invalidate(List<Invalidation> invalidations); // Events of other instances
+    }
+
+    public void publish(Invalidation invalidation); // Batched per transaction
+    public void publish(Collection<Invalidation> invalidations); // Joins the transaction batch, or sent at once as one batch
+    public void setListener(Listener listener);
+}
@@ -0,0 +1,255 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.HistoryManager;
+import com.springapp.cryptoexchange.database.OrderBookManager;
+import com.springapp.cryptoexchange.database.SettingsManager;
+import com.springapp.cryptoexchange.database.model.Trade;
+import com.springapp.cryptoexchange.database.model.TradingPair;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Restrictions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+// Market data of watched pairs pushed to "market/{id}" topics: depth level diffs, trades and ticker changes
+// Depth diff levels carry the new total amount of the level, zero if removed
+// Master pushes committed trades and diffs on book changes, other instances poll the database
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MarketStream {
+    static final int DEPTH_SIZE = 50, TRADES_SIZE = 50;
+    static final long POLL_INTERVAL = 1000; // Without order books
+
+    @Value
+    public static class DepthDiff implements Serializable {
+        List<BigDecimal[]> bids, asks; // [price, amount]
+    }
+
+    @Value
+    public static class Snapshot implements Serializable {
+        List<BigDecimal[]> bids, asks;
+        List<ConvertService.MarketHistory> trades; // Newest first
+        TickerService.Ticker ticker;
+    }
+
+    private static class PairState {
+        final long tradingPairId;
+        final NavigableMap<BigDecimal, BigDecimal> bids = new TreeMap<>(Collections.reverseOrder()), asks = new TreeMap<>();
+        final Deque<ConvertService.MarketHistory> trades = new ArrayDeque<>(TRADES_SIZE);
+        final List<ConvertService.MarketHistory> pendingTrades = new ArrayList<>();
+        final Queue<Trade> committed = new ConcurrentLinkedQueue<>(); // From matching threads, taken by flush without their waiting on the state
+        long bookVersion = -1, depthTime, lastTradeId;
+        TickerService.Ticker ticker;
+
+        PairState(long tradingPairId) {
+            this.tradingPairId = tradingPairId;
+        }
+
+        void addTrade(ConvertService.MarketHistory trade) {
+            if (trades.size() >= TRADES_SIZE) trades.removeLast();
+            trades.addFirst(trade);
+            pendingTrades.add(trade);
+        }
+    }
+
+    @Autowired
+    StreamHub streamHub;
+
+    @Autowired
+    SettingsManager settingsManager;
+
+    @Autowired
+    HistoryManager historyManager;
+
+    @Autowired
+    ConvertService convertService;
+
+    @Autowired
+    TickerService tickerService;
+
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired(required = false) // Master only
+    OrderBookManager orderBookManager;
+
+    final ConcurrentMap<Long, PairState> states = new ConcurrentHashMap<>();
+
+    public static String topic(long tradingPairId) {
+        return "market/" + tradingPairId;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PairState getState(final TradingPair tradingPair) {
+        PairState state = states.get(tradingPair.getId());
+        if (state == null) { // Recent trades for snapshots
+            final PairState newState = new PairState(tradingPair.getId());
+            final List<Trade> trades = new TransactionTemplate(transactionManager).execute(new TransactionCallback<List<Trade>>() {
+                @Override
+                public List<Trade> doInTransaction(TransactionStatus transactionStatus) {
+                    return historyManager.getMarketHistory(tradingPair, null).setMaxResults(TRADES_SIZE).list();
+                }
+            });
+            for (Trade trade : trades) {
+                newState.trades.addLast(new ConvertService.MarketHistory(trade));
+                newState.lastTradeId = Math.max(newState.lastTradeId, trade.getId());
+            }
+            state = states.putIfAbsent(tradingPair.getId(), newState);
+            if (state == null) state = newState;
+        }
+        return state;
+    }
+
+    // Committed fill, published with the next flush
+    public void addTrade(final @NonNull Trade trade) {
+        final PairState state = states.get(trade.getTradingPair().getId());
+        if (state == null) {
+            return; // Loaded from database on first subscription
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    state.committed.offer(trade);
+                }
+            });
+        } else {
+            state.committed.offer(trade);
+        }
+    }
+
+    private static List<BigDecimal[]> levels(NavigableMap<BigDecimal, BigDecimal> levels) {
+        final List<BigDecimal[]> list = new ArrayList<>(levels.size());
+        for (Map.Entry<BigDecimal, BigDecimal> level : levels.entrySet()) list.add(new BigDecimal[]{level.getKey(), level.getValue()});
+        return list;
+    }
+
+    // Changed levels, replaces published levels with current ones
+    private static List<BigDecimal[]> diff(NavigableMap<BigDecimal, BigDecimal> published, List<ConvertService.Depth.Entry> current) {
+        final List<BigDecimal[]> diff = new ArrayList<>();
+        final Map<BigDecimal, BigDecimal> removed = new TreeMap<>(published);
+        for (ConvertService.Depth.Entry entry : current) {
+            final BigDecimal amount = removed.remove(entry.getPrice());
+            if (amount == null || amount.compareTo(entry.getAmount()) != 0) diff.add(new BigDecimal[]{entry.getPrice(), entry.getAmount()});
+        }
+        for (BigDecimal price : removed.keySet()) diff.add(new BigDecimal[]{price, BigDecimal.ZERO});
+        published.clear();
+        for (ConvertService.Depth.Entry entry : current) published.put(entry.getPrice(), entry.getAmount());
+        return diff;
+    }
+
+    private static TickerService.Ticker findTicker(List<TickerService.Ticker> tickers, long tradingPairId) {
+        for (TickerService.Ticker ticker : tickers) if (ticker.getTradingPairId() == tradingPairId) return ticker;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void pollTrades(final PairState state) { // Without order books trades are not pushed
+        final List<Trade> trades = new TransactionTemplate(transactionManager).execute(new TransactionCallback<List<Trade>>() {
+            @Override
+            public List<Trade> doInTransaction(TransactionStatus transactionStatus) {
+                Session session = sessionFactory.getCurrentSession();
+                return session.createCriteria(Trade.class)
+                        .add(Restrictions.eq("tradingPair.id", state.tradingPairId))
+                        .add(Restrictions.gt("id", state.lastTradeId))
+                        .addOrder(org.hibernate.criterion.Order.asc("id"))
+                        .setMaxResults(TRADES_SIZE)
+                        .list();
+            }
+        });
+        for (Trade trade : trades) {
+            state.addTrade(new ConvertService.MarketHistory(trade));
+            state.lastTradeId = trade.getId();
+        }
+    }
+
+    private void flush(PairState state, List<TickerService.Ticker> tickers, long now) throws Exception {
+        final String topic = topic(state.tradingPairId);
+        synchronized (state) {
+            Trade trade;
+            while ((trade = state.committed.poll()) != null) {
+                state.addTrade(new ConvertService.MarketHistory(trade));
+                state.lastTradeId = Math.max(state.lastTradeId, trade.getId());
+            }
+            final boolean watched = streamHub.hasSubscribers(topic);
+            final boolean poll = watched && orderBookManager == null && now - state.depthTime >= POLL_INTERVAL;
+            if (poll) pollTrades(state); // Unwatched trades are polled later, in order
+            // Published even without subscribers: reconnecting clients replay them or see the gap
+            for (ConvertService.MarketHistory history : state.pendingTrades) streamHub.publish(topic, "trade", history);
+            state.pendingTrades.clear();
+            if (!watched) { // Depth and ticker diffs are taken against the last published state when watched again
+                return;
+            }
+            final TradingPair tradingPair = settingsManager.getTradingPair(state.tradingPairId);
+
+            final long bookVersion = orderBookManager == null ? -1 : orderBookManager.getOrderBook(tradingPair).getVersion();
+            if (poll || (orderBookManager != null && bookVersion != state.bookVersion)) {
+                final ConvertService.Depth depth = convertService.createDepth(tradingPair, DEPTH_SIZE);
+                final List<BigDecimal[]> bids = diff(state.bids, depth.getBuyOrders()), asks = diff(state.asks, depth.getSellOrders());
+                state.bookVersion = bookVersion;
+                state.depthTime = now;
+                if (!bids.isEmpty() || !asks.isEmpty()) streamHub.publish(topic, "depth", new DepthDiff(bids, asks));
+            }
+
+            final TickerService.Ticker ticker = findTicker(tickers, state.tradingPairId);
+            if (ticker != null && !ticker.equals(state.ticker)) {
+                state.ticker = ticker;
+                streamHub.publish(topic, "ticker", ticker);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelay = 250)
+    public void flush() {
+        if (states.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        List<TickerService.Ticker> tickers;
+        try {
+            tickers = tickerService.getTickers();
+        } catch (Exception e) {
+            log.warn("Tickers not available for market stream: " + e.getMessage());
+            tickers = Collections.emptyList();
+        }
+        for (PairState state : states.values()) {
+            try {
+                flush(state, tickers, now);
+            } catch (Exception e) {
+                log.error(String.format("Market stream of trading pair #%d not published", state.tradingPairId), e);
+            }
+        }
+    }
+
+    // Published state with its sequence, diffs with greater sequences apply on top of it
+    public StreamHub.Snapshot getSnapshot(@NonNull TradingPair tradingPair) {
+        final PairState state = getState(tradingPair);
+        synchronized (state) {
+            return new StreamHub.Snapshot(streamHub.getSeq(topic(state.tradingPairId)),
+                    new Snapshot(levels(state.bids), levels(state.asks), new ArrayList<>(state.trades), state.ticker));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.MarketManager;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Single writer per trading pair: tasks of one pair are applied strictly in order by the pair's own thread
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MatchingSequencer {
+    static final int QUEUE_CAPACITY = 1024;
+
+    private static final class Lane {
+        final ReentrantLock writeLock = new ReentrantLock();
+        final ThreadPoolExecutor executor;
+
+        Lane(final long tradingPairId) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "matching-" + tradingPairId);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        <T> T call(Callable<T> task) throws Exception {
+            writeLock.lock();
+            try {
+                return task.call();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    final ConcurrentMap<Long, Lane> laneMap = new ConcurrentHashMap<>();
+
+    private Lane getLane(long tradingPairId) {
+        Lane lane = laneMap.get(tradingPairId);
+        if (lane == null) {
+            final Lane newLane = new Lane(tradingPairId);
+            lane = laneMap.putIfAbsent(tradingPairId, newLane);
+            if (lane == null) {
+                lane = newLane;
+            } else {
+                newLane.executor.shutdown();
+            }
+        }
+        return lane;
+    }
+
+    private static boolean mustRunInline(Lane lane) {
+        // Writer thread itself, or caller has uncommitted changes the task must see
+        return lane.writeLock.isHeldByCurrentThread() || (TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly());
+    }
+
+    public <T> T execute(long tradingPairId, final Callable<T> task) throws Exception {
+        final Lane lane = getLane(tradingPairId);
+        if (mustRunInline(lane)) {
+            return lane.call(task);
+        }
+
+        final Future<T> future;
+        try {
+            future = lane.executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return lane.call(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn(String.format("Matching queue is full for trading pair #%d", tradingPairId));
+            throw new MarketManager.MarketException("Market is busy, try again later", e);
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else throw e;
+        }
+    }
+
+    public void remove(long tradingPairId) {
+        Lane lane = laneMap.remove(tradingPairId);
+        if (lane != null) {
+            lane.executor.shutdown();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        log.info("Shutting down matching threads");
+        for (Lane lane : laneMap.values()) lane.executor.shutdown();
+        for (Lane lane : laneMap.values()) lane.executor.awaitTermination(10, TimeUnit.SECONDS);
+        laneMap.clear();
+    }
+}
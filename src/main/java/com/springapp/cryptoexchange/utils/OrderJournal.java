@@ -0,0 +1,317 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Append-only binary log of matching events, fsync'ed in group commits by a single flusher thread
+// Log is split into segments named by their first sequence, old segments are removed after snapshot
+@Service
+@Profile("master")
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class OrderJournal {
+    public static enum Type {
+        ACCEPT, // targetId = order, flag = order type, counterId = open time, amount, price
+        FILL, // targetId = taker order, counterId = maker order, amount, price
+        CANCEL, // targetId = order
+        BALANCE, // targetId = wallet, amount = delta
+        FEE, // targetId = currency, flag = fee type, amount
+        COMMIT, // tx committed to database
+        ABORT // tx rolled back
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class Event {
+        long seq;
+        long tx; // Sequence of the first event of transaction
+        Type type;
+        byte flag;
+        long tradingPairId;
+        long targetId;
+        long counterId;
+        long amount; // Fixed-point units
+        long price;
+
+        public Event(Type type, int flag, long tradingPairId, long targetId, long counterId, long amount, long price) {
+            this(0, 0, type, (byte) flag, tradingPairId, targetId, counterId, amount, price);
+        }
+    }
+
+    public static interface Visitor {
+        void visit(Event event) throws Exception;
+    }
+
+    static final int RECORD_SIZE = 8 + 8 + 1 + 1 + 8 * 5 + 4;
+
+    @Value("${journal.path:journal/orders.journal}")
+    String path;
+
+    File directory;
+    String name;
+    final NavigableMap<Long, File> segments = new TreeMap<>(); // First sequence => file
+    final Object channelLock = new Object();
+    FileChannel channel; // Active segment
+    long writtenSeq;
+
+    Thread flusher;
+    final Object lock = new Object();
+    List<Event> pending = new ArrayList<>();
+    long lastSeq, durableSeq;
+    IOException failure;
+    volatile boolean running;
+
+    private static void write(ByteBuffer buffer, Event event) {
+        final int start = buffer.position();
+        buffer.putLong(event.getSeq()).putLong(event.getTx()).put((byte) event.getType().ordinal()).put(event.getFlag())
+                .putLong(event.getTradingPairId()).putLong(event.getTargetId()).putLong(event.getCounterId())
+                .putLong(event.getAmount()).putLong(event.getPrice());
+        buffer.putInt(checksum(buffer, start, RECORD_SIZE - 4));
+    }
+
+    private static Event read(ByteBuffer buffer) {
+        final int start = buffer.position();
+        if (buffer.getInt(start + RECORD_SIZE - 4) != checksum(buffer, start, RECORD_SIZE - 4)) {
+            return null; // Torn write
+        }
+        final Event event = new Event(buffer.getLong(), buffer.getLong(), Type.values()[buffer.get()], buffer.get(),
+                buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        buffer.getInt();
+        return event;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        for (int i = offset; i < offset + length; i++) crc.update(buffer.get(i));
+        return (int) crc.getValue();
+    }
+
+    // Reads valid records from the beginning, returns offset after the last one
+    private long scan(FileChannel segment, Visitor visitor) throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        long position = 0;
+        while (segment.read(buffer, position + buffer.position()) > 0 || buffer.position() > 0) {
+            buffer.flip();
+            if (buffer.remaining() < RECORD_SIZE) break;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                final Event event = read(buffer);
+                if (event == null) return position;
+                if (visitor != null) visitor.visit(event);
+                lastSeq = Math.max(lastSeq, event.getSeq());
+                position += RECORD_SIZE;
+            }
+            buffer.compact();
+        }
+        return position;
+    }
+
+    private File segmentFile(long firstSeq) {
+        return new File(directory, String.format("%s.%019d", name, firstSeq));
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        final File file = segmentFile(firstSeq);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(firstSeq, file);
+    }
+
+    public void replay(@NonNull Visitor visitor) throws Exception {
+        synchronized (lock) { // Events appended during replay are not visited
+            final List<File> files;
+            synchronized (channelLock) {
+                files = new ArrayList<>(segments.values());
+            }
+            for (File file : files) {
+                try (FileChannel segment = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    if (scan(segment, visitor) < segment.size()) {
+                        log.error(String.format("Journal segment is corrupted: %s", file));
+                    }
+                }
+            }
+        }
+    }
+
+    public long getLastSeq() {
+        synchronized (lock) {
+            return lastSeq;
+        }
+    }
+
+    // Assigns sequence numbers, first event's sequence becomes transaction id
+    public long append(@NonNull List<Event> events) {
+        Assert.notEmpty(events);
+        synchronized (lock) {
+            Assert.state(running, "Journal is closed");
+            final long tx = lastSeq + 1;
+            for (Event event : events) {
+                event.setSeq(++lastSeq);
+                if (event.getTx() == 0) event.setTx(tx);
+                pending.add(event);
+            }
+            lock.notifyAll();
+            return lastSeq;
+        }
+    }
+
+    public long append(@NonNull Type marker, long tx) {
+        final List<Event> events = new ArrayList<>(1);
+        events.add(new Event(0, tx, marker, (byte) 0, 0, 0, 0, 0, 0));
+        return append(events);
+    }
+
+    // Blocks until the event with given sequence is on disk
+    public void await(long seq) throws IOException, InterruptedException {
+        synchronized (lock) {
+            while (durableSeq < seq) {
+                if (failure != null) throw new IOException("Journal write failed", failure);
+                lock.wait();
+            }
+        }
+    }
+
+    // Starts a new segment with the next written event
+    public void roll() throws IOException {
+        synchronized (channelLock) {
+            final long firstSeq = writtenSeq + 1;
+            if (segments.lastKey() == firstSeq) {
+                return; // Active segment is empty
+            }
+            channel.force(false);
+            channel.close();
+            openSegment(firstSeq);
+        }
+    }
+
+    // Removes segments containing only events up to the given sequence,
+    // one more segment is kept for transactions which were in flight at its boundary
+    public void deleteUpTo(long seq) {
+        synchronized (channelLock) {
+            final Iterator<Map.Entry<Long, File>> iterator = segments.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, File> segment = iterator.next();
+                final Long next = segments.higherKey(segment.getKey()), afterNext = next == null ? null : segments.higherKey(next);
+                if (afterNext == null || afterNext > seq + 1) break;
+                if (segment.getValue().delete()) {
+                    log.info(String.format("Journal segment removed: %s", segment.getValue()));
+                    iterator.remove();
+                } else break;
+            }
+        }
+    }
+
+    private void flushLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 1024);
+        while (true) {
+            final List<Event> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new ArrayList<>(batch.size());
+            }
+
+            try {
+                if (buffer.capacity() < batch.size() * RECORD_SIZE) {
+                    buffer = ByteBuffer.allocateDirect(batch.size() * RECORD_SIZE);
+                }
+                buffer.clear();
+                for (Event event : batch) write(buffer, event);
+                buffer.flip();
+                synchronized (channelLock) {
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    channel.force(false); // One fsync for all waiting transactions
+                    writtenSeq = batch.get(batch.size() - 1).getSeq();
+                }
+                synchronized (lock) {
+                    durableSeq = writtenSeq;
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                log.fatal("Journal write failed", e);
+                synchronized (lock) {
+                    failure = e;
+                    running = false;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        final File file = new File(path).getAbsoluteFile();
+        directory = file.getParentFile();
+        name = file.getName();
+        if (!directory.exists()) {
+            Assert.isTrue(directory.mkdirs(), "Couldn't create journal directory");
+        }
+        if (file.exists()) { // Single-file journal, first sequence is always 1
+            Assert.isTrue(file.renameTo(segmentFile(1)), "Couldn't rename journal");
+        }
+
+        final File[] files = directory.listFiles();
+        if (files != null) for (File segment : files) {
+            final String suffix = segment.getName().substring(Math.min(name.length() + 1, segment.getName().length()));
+            if (segment.getName().startsWith(name + ".") && suffix.matches("\\d+")) {
+                segments.put(Long.parseLong(suffix), segment);
+            }
+        }
+        final long firstSeq = segments.isEmpty() ? 1 : segments.lastKey();
+        lastSeq = firstSeq - 1;
+        openSegment(firstSeq);
+
+        final long end = scan(channel, null);
+        if (end < channel.size()) {
+            log.warn(String.format("Journal tail is corrupted, truncating %d bytes", channel.size() - end));
+            channel.truncate(end);
+        }
+        channel.position(end);
+        writtenSeq = durableSeq = lastSeq;
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info(String.format("Journal opened: %s (%d segments, last sequence %d)", file, segments.size(), lastSeq));
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        flusher.join(10000);
+        synchronized (channelLock) {
+            channel.close();
+        }
+    }
+}
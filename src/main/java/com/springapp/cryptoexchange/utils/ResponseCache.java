@@ -0,0 +1,129 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+// Public responses are cached already encoded: JSON bytes, gzip'ed copy and ETag of the content
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ResponseCache {
+    static final int GZIP_MIN_SIZE = 512;
+    static final MediaType JSON = new MediaType("application", "json", Charset.forName("UTF-8"));
+
+    @Value
+    public static class Entry implements Serializable {
+        byte[] json;
+        byte[] gzip; // Null for small responses
+        String etag;
+    }
+
+    public static interface Producer {
+        Object produce() throws Exception; // Entry is cached as is
+    }
+
+    @Autowired
+    CacheManager cacheManager;
+
+    @Autowired
+    MappingJackson2HttpMessageConverter jacksonMessageConverter;
+
+    final AtomicLong versions = new AtomicLong();
+
+    private static String digest(byte[] data) throws Exception {
+        final byte[] hash = MessageDigest.getInstance("SHA-1").digest(data);
+        final StringBuilder etag = new StringBuilder(hash.length * 2 + 2).append('"');
+        for (int i = 0; i < 12; i++) etag.append(String.format("%02x", hash[i]));
+        return etag.append('"').toString();
+    }
+
+    public Entry encode(Object value) throws Exception {
+        return wrap(jacksonMessageConverter.getObjectMapper().writeValueAsBytes(value));
+    }
+
+    // Already encoded body, "json" of the entry holds it as is
+    public Entry wrap(@NonNull byte[] body) throws Exception {
+        byte[] gzip = null;
+        if (body.length >= GZIP_MIN_SIZE) {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream output = new GZIPOutputStream(buffer)) {
+                output.write(body);
+            }
+            gzip = buffer.toByteArray();
+        }
+        return new Entry(body, gzip, digest(body));
+    }
+
+    // Encoded value from the named cache, produced and encoded once on miss
+    public Entry get(@NonNull String cacheName, @NonNull Object key, @NonNull Producer producer) throws Exception {
+        final Cache cache = cacheManager.getCache(cacheName);
+        Assert.notNull(cache, "Cache not found: " + cacheName);
+        final Cache.ValueWrapper cached = cache.get(key);
+        if (cached != null && cached.get() instanceof Entry) {
+            return (Entry) cached.get();
+        }
+        final Object value = producer.produce();
+        final Entry entry = value instanceof Entry ? (Entry) value : encode(value);
+        cache.put(key, entry);
+        return entry;
+    }
+
+    // Version of a group of entries keyed with it: one eviction of the version retires the whole group
+    public long getVersion(@NonNull String cacheName, @NonNull Object key) {
+        final Cache cache = cacheManager.getCache(cacheName);
+        Assert.notNull(cache, "Cache not found: " + cacheName);
+        final Cache.ValueWrapper cached = cache.get(key);
+        if (cached != null && cached.get() instanceof Long) {
+            return (Long) cached.get();
+        }
+        final long version = versions.incrementAndGet(); // Never reused, retired entries expire
+        cache.put(key, version);
+        return version;
+    }
+
+    public ResponseEntity<byte[]> respond(@NonNull HttpServletRequest request, @NonNull Entry entry) {
+        return respond(request, entry, JSON);
+    }
+
+    public ResponseEntity<byte[]> respond(@NonNull HttpServletRequest request, @NonNull Entry entry, @NonNull MediaType contentType) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(contentType);
+        headers.setETag(entry.getEtag());
+        headers.setCacheControl("no-cache"); // Revalidated with ETag
+        headers.set("Vary", "Accept-Encoding");
+
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(entry.getEtag()) || ifNoneMatch.trim().equals("*"))) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (entry.getGzip() != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            headers.set("Content-Encoding", "gzip");
+            return new ResponseEntity<>(entry.getGzip(), headers, HttpStatus.OK);
+        }
+        return new ResponseEntity<>(entry.getJson(), headers, HttpStatus.OK);
+    }
+
+    public ResponseEntity<byte[]> respond(@NonNull HttpServletRequest request, @NonNull String cacheName, @NonNull Object key, @NonNull Producer producer) throws Exception {
+        return respond(request, get(cacheName, key, producer));
+    }
+}
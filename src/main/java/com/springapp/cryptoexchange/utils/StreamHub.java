@@ -0,0 +1,267 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Server-sent event topics: every event gets the next sequence number of its topic and is encoded once for all subscribers
+// New subscribers get a snapshot stamped with the sequence it includes, reconnecting ones get missed events if still buffered
+// Frames are queued under the topic lock and written without blocking when the socket is ready, slow clients are dropped
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class StreamHub {
+    static final int REPLAY_SIZE = 256, QUEUE_SIZE = 1024; // Frames waiting for a client, it is dropped beyond
+    static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5); // Browsers reconnect with Last-Event-ID
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF8);
+
+    @Value
+    public static class Snapshot {
+        long seq; // Last event included
+        Object data;
+    }
+
+    public static interface SnapshotProvider {
+        Snapshot snapshot() throws Exception; // Consistent with the sequence of the topic, see getSeq
+    }
+
+    @Value
+    private static class Event {
+        long seq;
+        byte[] frame;
+    }
+
+    private static class Channel {
+        long seq;
+        final Deque<Event> recent = new ArrayDeque<>(REPLAY_SIZE);
+        final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    }
+
+    // Non-blocking writer of one client, frames are written by the publisher or by the container when the socket drains
+    private static class Subscriber implements WriteListener {
+        final Channel channel;
+        final AsyncContext context;
+        final ServletOutputStream output;
+        final Deque<byte[]> queue = new ArrayDeque<>();
+        boolean closed;
+
+        Subscriber(Channel channel, AsyncContext context) throws IOException {
+            this.channel = channel;
+            this.context = context;
+            this.output = context.getResponse().getOutputStream();
+        }
+
+        synchronized void enqueue(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() >= QUEUE_SIZE) {
+                log.warn("Slow stream client dropped");
+                close();
+                return;
+            }
+            queue.addLast(frame);
+        }
+
+        synchronized void drain() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (!queue.isEmpty() && output.isReady()) output.write(queue.pollFirst());
+                if (queue.isEmpty() && output.isReady()) output.flush();
+            } catch (Exception e) { // Client is gone
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            channel.subscribers.remove(this);
+            try {
+                context.complete();
+            } catch (Exception ignored) {
+                // Already completed
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            close();
+        }
+    }
+
+    @Autowired
+    MappingJackson2HttpMessageConverter jacksonMessageConverter;
+
+    final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private Channel getChannel(String topic) {
+        Channel channel = channels.get(topic);
+        if (channel == null) {
+            final Channel newChannel = new Channel();
+            channel = channels.putIfAbsent(topic, newChannel);
+            if (channel == null) channel = newChannel;
+        }
+        return channel;
+    }
+
+    private byte[] frame(long seq, String type, Object data) throws IOException {
+        return String.format("id: %d\nevent: %s\ndata: %s\n\n", seq, type,
+                jacksonMessageConverter.getObjectMapper().writeValueAsString(data)).getBytes(UTF8);
+    }
+
+    public long getSeq(@NonNull String topic) {
+        final Channel channel = getChannel(topic);
+        synchronized (channel) {
+            return channel.seq;
+        }
+    }
+
+    public boolean hasSubscribers(@NonNull String topic) {
+        final Channel channel = channels.get(topic);
+        return channel != null && !channel.subscribers.isEmpty();
+    }
+
+    private static void drain(List<Subscriber> subscribers) {
+        for (Subscriber subscriber : subscribers) subscriber.drain();
+    }
+
+    public void publish(@NonNull String topic, @NonNull String type, @NonNull Object data) throws IOException {
+        final Channel channel = getChannel(topic);
+        final List<Subscriber> subscribers;
+        synchronized (channel) { // Queued in sequence order, written outside of the lock
+            final Event event = new Event(channel.seq + 1, frame(channel.seq + 1, type, data));
+            channel.seq = event.getSeq();
+            if (channel.recent.size() >= REPLAY_SIZE) channel.recent.removeFirst();
+            channel.recent.addLast(event);
+            subscribers = new ArrayList<>(channel.subscribers);
+            for (Subscriber subscriber : subscribers) subscriber.enqueue(event.getFrame());
+        }
+        drain(subscribers);
+    }
+
+    // Forgets buffered events: reconnecting clients get a snapshot, used when published events were skipped
+    public void reset(@NonNull String topic) {
+        final Channel channel = getChannel(topic);
+        synchronized (channel) {
+            channel.seq++;
+            channel.recent.clear();
+        }
+    }
+
+    // Queues buffered events after the sequence, false if some of them are not buffered anymore
+    private boolean replay(Channel channel, Subscriber subscriber, long seq) {
+        if (seq > channel.seq || (seq < channel.seq && (channel.recent.isEmpty() || channel.recent.peekFirst().getSeq() > seq + 1))) {
+            return false;
+        }
+        for (Event event : channel.recent) if (event.getSeq() > seq) subscriber.enqueue(event.getFrame());
+        return true;
+    }
+
+    // Starts async response, lastEventId is null for new clients
+    public void subscribe(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response, @NonNull String topic,
+                          Long lastEventId, @NonNull SnapshotProvider provider) throws Exception {
+        final Channel channel = getChannel(topic);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        final AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(TIMEOUT);
+        final Subscriber subscriber = new Subscriber(channel, context);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                channel.subscribers.remove(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                subscriber.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                subscriber.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+                // Not restarted
+            }
+        });
+
+        subscriber.output.setWriteListener(subscriber); // Non-blocking from now on, container drains the queue once the socket is ready
+        try {
+            subscribe(channel, subscriber, lastEventId, provider);
+        } catch (Exception e) {
+            subscriber.close();
+            throw e;
+        }
+        subscriber.drain();
+    }
+
+    private void subscribe(Channel channel, Subscriber subscriber, Long lastEventId, SnapshotProvider provider) throws Exception {
+        if (lastEventId != null) synchronized (channel) {
+            if (replay(channel, subscriber, lastEventId)) {
+                channel.subscribers.add(subscriber);
+                return;
+            }
+        }
+        while (true) { // Snapshot is taken outside of channel lock, events published meanwhile are replayed
+            final Snapshot snapshot = provider.snapshot();
+            synchronized (channel) {
+                if (snapshot.getSeq() == channel.seq || (!channel.recent.isEmpty() && channel.recent.peekFirst().getSeq() <= snapshot.getSeq() + 1)) {
+                    subscriber.enqueue(frame(snapshot.getSeq(), "snapshot", snapshot.getData()));
+                    replay(channel, subscriber, snapshot.getSeq());
+                    channel.subscribers.add(subscriber);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Keeps connections open through proxies and finds closed ones
+    @Scheduled(fixedDelay = 15 * 1000) // Every 15s
+    public void heartbeat() {
+        for (Channel channel : channels.values()) {
+            final List<Subscriber> subscribers;
+            synchronized (channel) {
+                subscribers = new ArrayList<>(channel.subscribers);
+                for (Subscriber subscriber : subscribers) subscriber.enqueue(HEARTBEAT);
+            }
+            drain(subscribers);
+        }
+    }
+}
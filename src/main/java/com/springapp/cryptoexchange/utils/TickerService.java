@@ -0,0 +1,166 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.HistoryManager;
+import com.springapp.cryptoexchange.database.OrderBook;
+import com.springapp.cryptoexchange.database.OrderBookManager;
+import com.springapp.cryptoexchange.database.SettingsManager;
+import com.springapp.cryptoexchange.database.model.Order;
+import com.springapp.cryptoexchange.database.model.TradingPair;
+import lombok.AccessLevel;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.*;
+
+// Tickers of all pairs in one immutable snapshot, only changed pairs are rebuilt
+// Order books and ticker windows exist on master, other instances refresh by time
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class TickerService {
+    static final long REFRESH_INTERVAL = 5 * 1000, PAIRS_REFRESH_INTERVAL = 60 * 1000;
+
+    @Value
+    public static class Ticker implements Serializable {
+        long tradingPairId;
+        String name;
+        BigDecimal lastPrice, bid, ask; // Bid and ask are null if the book side is empty
+        BigDecimal high, low, volume, change; // Rolling 24h
+    }
+
+    @Value
+    private static class Entry {
+        Ticker ticker;
+        long bookVersion, tickerVersion, minute;
+    }
+
+    @Value
+    private static class Snapshot {
+        List<TradingPair> tradingPairs;
+        long pairsTime, time;
+        Map<Long, Entry> entries;
+        List<Ticker> tickers;
+        ResponseCache.Entry encoded;
+    }
+
+    @Autowired
+    SettingsManager settingsManager;
+
+    @Autowired
+    HistoryManager historyManager;
+
+    @Autowired
+    ConvertService convertService;
+
+    @Autowired
+    ResponseCache responseCache;
+
+    @Autowired(required = false) // Master only
+    OrderBookManager orderBookManager;
+
+    volatile Snapshot snapshot;
+
+    private long getBookVersion(TradingPair tradingPair) {
+        return orderBookManager == null ? -1 : orderBookManager.getOrderBook(tradingPair).getVersion();
+    }
+
+    private boolean isChanged(TradingPair tradingPair, Entry entry, long now) {
+        return entry == null || orderBookManager == null
+                || entry.getBookVersion() != getBookVersion(tradingPair)
+                || entry.getTickerVersion() != historyManager.getTickerVersion(tradingPair.getId())
+                || entry.getMinute() != now / (60 * 1000); // Window moves
+    }
+
+    private boolean isStale(Snapshot snapshot, long now) {
+        if (snapshot == null || now - snapshot.getPairsTime() > PAIRS_REFRESH_INTERVAL) {
+            return true;
+        }
+        if (orderBookManager == null) {
+            return now - snapshot.getTime() > REFRESH_INTERVAL;
+        }
+        for (TradingPair tradingPair : snapshot.getTradingPairs()) {
+            if (tradingPair.isEnabled() && isChanged(tradingPair, snapshot.getEntries().get(tradingPair.getId()), now)) return true;
+        }
+        return false;
+    }
+
+    private static BigDecimal best(List<ConvertService.Depth.Entry> depth) {
+        return depth == null || depth.isEmpty() ? null : depth.get(0).getPrice();
+    }
+
+    private Entry createEntry(TradingPair tradingPair, long now) throws Exception {
+        final long bookVersion = getBookVersion(tradingPair), tickerVersion = historyManager.getTickerVersion(tradingPair.getId());
+        final BigDecimal bid, ask;
+        if (orderBookManager != null) {
+            final OrderBook orderBook = orderBookManager.getOrderBook(tradingPair);
+            final List<OrderBook.Level> bids = orderBook.getDepth(Order.Type.BUY, 1), asks = orderBook.getDepth(Order.Type.SELL, 1);
+            bid = bids.isEmpty() ? null : Calculator.fromUnits(bids.get(0).getPrice());
+            ask = asks.isEmpty() ? null : Calculator.fromUnits(asks.get(0).getPrice());
+        } else {
+            final ConvertService.Depth depth = convertService.createDepth(tradingPair, 1);
+            bid = best(depth.getBuyOrders());
+            ask = best(depth.getSellOrders());
+        }
+        historyManager.withTicker(tradingPair);
+        return new Entry(new Ticker(tradingPair.getId(), tradingPair.getName(), tradingPair.getLastPrice(), bid, ask,
+                tradingPair.getDayHigh(), tradingPair.getDayLow(), tradingPair.getVolume(), tradingPair.getDayChange()),
+                bookVersion, tickerVersion, now / (60 * 1000));
+    }
+
+    private Snapshot rebuild(Snapshot previous, long now) throws Exception {
+        final boolean reloadPairs = previous == null || now - previous.getPairsTime() > PAIRS_REFRESH_INTERVAL;
+        final List<TradingPair> tradingPairs = reloadPairs ? settingsManager.getTradingPairs() : previous.getTradingPairs();
+        final Map<Long, Entry> entries = new HashMap<>(tradingPairs.size());
+        final List<Ticker> tickers = new ArrayList<>(tradingPairs.size());
+        int rebuilt = 0;
+        for (TradingPair tradingPair : tradingPairs) {
+            if (!tradingPair.isEnabled()) continue;
+            Entry entry = previous == null ? null : previous.getEntries().get(tradingPair.getId());
+            if (reloadPairs || isChanged(tradingPair, entry, now)) {
+                entry = createEntry(tradingPair, now);
+                rebuilt++;
+            }
+            entries.put(tradingPair.getId(), entry);
+            tickers.add(entry.getTicker());
+        }
+        Collections.sort(tickers, new Comparator<Ticker>() {
+            @Override
+            public int compare(Ticker o1, Ticker o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Ticker snapshot rebuilt: %d of %d pairs", rebuilt, tickers.size()));
+        }
+        return new Snapshot(tradingPairs, reloadPairs ? now : previous.getPairsTime(), now,
+                Collections.unmodifiableMap(entries), Collections.unmodifiableList(tickers), responseCache.encode(tickers));
+    }
+
+    public List<Ticker> getTickers() throws Exception {
+        return getSnapshot().getTickers();
+    }
+
+    public ResponseCache.Entry getEncodedTickers() throws Exception {
+        return getSnapshot().getEncoded();
+    }
+
+    private Snapshot getSnapshot() throws Exception {
+        final long now = System.currentTimeMillis();
+        Snapshot current = snapshot;
+        if (isStale(current, now)) {
+            synchronized (this) {
+                current = snapshot;
+                if (isStale(current, now)) {
+                    current = rebuild(current, now);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,200 @@
+package com.springapp.cryptoexchange.utils;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.*;
+
+// Invalidations sent as compact datagrams to the configured peers ("host:port,host:port"), one batch per transaction
+// Lost datagrams are covered by cache expiration, see ehcache.xml
+@Service
+@CommonsLog
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class UdpInvalidationBus implements InvalidationBus {
+    static final int MAX_DATAGRAM = 1400; // Fits into ethernet MTU
+    static final byte CLEAR = 0, LONG_KEY = 1, STRING_KEY = 2;
+
+    @Value("${cache.bus.port:40001}")
+    int port;
+
+    @Value("${cache.bus.peers:}")
+    String peersList;
+
+    final long node = new SecureRandom().nextLong(); // Own datagrams are skipped
+    final List<InetSocketAddress> peers = new ArrayList<>();
+    DatagramSocket socket;
+    volatile Listener listener;
+
+    @PostConstruct
+    public void start() {
+        for (String peer : StringUtils.commaDelimitedListToStringArray(peersList)) {
+            final String[] address = peer.trim().split(":");
+            peers.add(new InetSocketAddress(address[0], address.length > 1 ? Integer.parseInt(address[1]) : port));
+        }
+        if (peers.isEmpty()) {
+            log.info("No cache invalidation peers configured, caches are local");
+            return;
+        }
+        try {
+            socket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            log.error("Cache invalidation bus not started on port " + port, e);
+            return;
+        }
+        final Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "cache-invalidation-bus");
+        receiver.setDaemon(true);
+        receiver.start();
+        log.info(String.format("Cache invalidation bus listening on port %d, peers: %s", port, peers));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (socket != null) socket.close();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private static boolean isSupported(Object key) {
+        return key == null || key instanceof Long || key instanceof String;
+    }
+
+    public void publish(@NonNull Invalidation invalidation) {
+        publish(Collections.singleton(invalidation));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void publish(@NonNull Collection<Invalidation> invalidations) {
+        if (socket == null || invalidations.isEmpty()) {
+            return;
+        }
+        final Set<Invalidation> supported = new LinkedHashSet<>();
+        for (Invalidation invalidation : invalidations) { // Composite keys are not encoded
+            supported.add(isSupported(invalidation.getKey()) ? invalidation : new Invalidation(invalidation.getCache(), null));
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            send(supported);
+            return;
+        }
+        Set<Invalidation> batch = (Set<Invalidation>) TransactionSynchronizationManager.getResource(this);
+        if (batch == null) {
+            final Set<Invalidation> newBatch = new LinkedHashSet<>();
+            TransactionSynchronizationManager.bindResource(this, newBatch);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    send(newBatch);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(UdpInvalidationBus.this);
+                }
+            });
+            batch = newBatch;
+        }
+        batch.addAll(supported);
+    }
+
+    private static void write(DataOutputStream output, Invalidation invalidation) throws IOException {
+        output.writeUTF(invalidation.getCache());
+        final Object key = invalidation.getKey();
+        if (key == null) {
+            output.writeByte(CLEAR);
+        } else if (key instanceof Long) {
+            output.writeByte(LONG_KEY);
+            output.writeLong((Long) key);
+        } else {
+            output.writeByte(STRING_KEY);
+            output.writeUTF((String) key);
+        }
+    }
+
+    private void send(byte[] data, int length) {
+        for (InetSocketAddress peer : peers) try {
+            socket.send(new DatagramPacket(data, length, peer));
+        } catch (IOException e) {
+            log.warn(String.format("Cache invalidations not sent to %s: %s", peer, e.getMessage()));
+        }
+    }
+
+    // Split into datagrams of whole invalidations: [node][count]([cache][type][key])*
+    private void send(Collection<Invalidation> invalidations) {
+        try {
+            final ByteArrayOutputStream datagram = new ByteArrayOutputStream(MAX_DATAGRAM), entry = new ByteArrayOutputStream(128);
+            int count = 0;
+            for (Invalidation invalidation : invalidations) {
+                entry.reset();
+                write(new DataOutputStream(entry), invalidation);
+                if (count > 0 && datagram.size() + entry.size() > MAX_DATAGRAM) {
+                    flush(datagram, count);
+                    count = 0;
+                }
+                if (count == 0) {
+                    datagram.reset();
+                    final DataOutputStream header = new DataOutputStream(datagram);
+                    header.writeLong(node);
+                    header.writeShort(0); // Count, patched on flush
+                }
+                entry.writeTo(datagram);
+                count++;
+            }
+            if (count > 0) flush(datagram, count);
+        } catch (IOException e) {
+            log.error("Cache invalidations not encoded", e);
+        }
+    }
+
+    private void flush(ByteArrayOutputStream datagram, int count) {
+        final byte[] data = datagram.toByteArray();
+        data[8] = (byte) (count >>> 8);
+        data[9] = (byte) count;
+        send(data, data.length);
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[MAX_DATAGRAM * 2];
+        while (!socket.isClosed()) {
+            try {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                final DataInputStream input = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+                if (input.readLong() == node) continue;
+                final int count = input.readUnsignedShort();
+                final List<Invalidation> invalidations = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    final String cache = input.readUTF();
+                    final byte type = input.readByte();
+                    invalidations.add(new Invalidation(cache, type == LONG_KEY ? (Object) input.readLong() : type == STRING_KEY ? input.readUTF() : null));
+                }
+                final Listener listener = this.listener;
+                if (listener != null) listener.invalidate(invalidations);
+            } catch (SocketException e) {
+                if (!socket.isClosed()) log.error("Cache invalidation bus failed", e);
+            } catch (Exception e) {
+                log.warn("Malformed cache invalidation datagram: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -56,6 +56,11 @@ public class AdminController {
         return feeManager.getFreeBalances();
     }
 
+    @RequestMapping(value = "/cache/stats", method = RequestMethod.GET)
+    public CacheCleaner.Stats getCacheStats() {
+        return cacheCleaner.getStats();
+    }
+
     @Transactional(readOnly = true)
     @RequestMapping(value = "/fee/{currencyId}", method = RequestMethod.GET)
     public FreeBalance getFreeBalance(@PathVariable long currencyId) {
@@ -4,6 +4,7 @@ import com.bitcoin.daemon.AbstractTransaction;
 import com.springapp.cryptoexchange.database.*;
 import com.springapp.cryptoexchange.database.model.*;
 import com.springapp.cryptoexchange.utils.ConvertService;
+import com.springapp.cryptoexchange.utils.HistoryExporter;
 import com.warrenstrange.googleauth.GoogleAuthenticatorKey;
 import lombok.extern.apachecommons.CommonsLog;
 import org.hibernate.Session;
@@ -19,8 +20,12 @@ import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.security.Principal;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +57,9 @@ public class PrivateController {
     @Autowired
     SessionFactory sessionFactory;
 
+    @Autowired
+    HistoryExporter historyExporter;
+
     @Cacheable(value = "getAccountBalances", key = "#principal.name")
     @RequestMapping("/balance")
     public List<ConvertService.AccountBalance> getAccountBalances(Principal principal) throws Exception {
@@ -88,26 +96,61 @@ public class PrivateController {
         return accountManager.getAccountOrdersByPair(tradingPair, account, 20);
     }
 
-    @SuppressWarnings("unchecked")
+    // Next page: ?before=time_id of the last entry, only the first page is cached
     @Transactional(readOnly = true)
-    @Cacheable(value = "getAccountHistory", key = "#principal.name")
+    @Cacheable(value = "getAccountHistory", key = "#principal.name", condition = "#before == null")
     @RequestMapping("/history")
-    public List<Order> getAccountHistory(Principal principal) {
+    public List<ConvertService.MarketHistory> getAccountHistory(Principal principal, @RequestParam(required = false) String before) throws Exception {
         Account account = accountManager.getAccount(principal.getName());
         Assert.notNull(account);
-        return historyManager.getAccountHistory(account).setMaxResults(20).list();
+        return convertService.createAccountHistory(historyManager.getAccountHistory(account, null,
+                before == null ? null : HistoryManager.Cursor.parse(before), 20), account);
     }
 
-    @SuppressWarnings("unchecked")
     @Transactional(readOnly = true)
-    @Cacheable(value = "getAccountHistoryByPair", key = "#principal.name + '/' + #tradingPairId")
+    @Cacheable(value = "getAccountHistoryByPair", key = "#principal.name + '/' + #tradingPairId", condition = "#before == null")
     @RequestMapping("/history/{tradingPairId}")
-    public List<Order> getAccountHistoryByPair(Principal principal, @PathVariable long tradingPairId) {
+    public List<ConvertService.MarketHistory> getAccountHistoryByPair(Principal principal, @PathVariable long tradingPairId,
+                                                                      @RequestParam(required = false) String before) throws Exception {
         TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
         Account account = accountManager.getAccount(principal.getName());
         Assert.notNull(tradingPair);
         Assert.notNull(account);
-        return historyManager.getAccountHistoryByPair(tradingPair, account).setMaxResults(20).list();
+        return convertService.createAccountHistory(historyManager.getAccountHistory(account, tradingPair,
+                before == null ? null : HistoryManager.Cursor.parse(before), 20), account);
+    }
+
+    // Trades of the pair in [from, to) (epoch ms, the last HistoryExporter.MAX_RANGE by default) streamed as CSV or NDJSON
+    @RequestMapping("/export/market/{tradingPairId}")
+    public void exportMarketHistory(@PathVariable long tradingPairId, @RequestParam(defaultValue = "csv") String format,
+                                    @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                    HttpServletResponse response) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+        Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
+        final long end = to != null ? to : System.currentTimeMillis(), start = from != null ? from : end - HistoryExporter.MAX_RANGE;
+        final HistoryExporter.Format exportFormat = HistoryExporter.Format.of(format);
+        response.setContentType(exportFormat.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", String.format("attachment; filename=\"trades-%d-%d-%d.%s\"", tradingPairId, start, end, exportFormat.getExtension()));
+        historyExporter.exportMarketHistory(tradingPair, new Date(start), new Date(end), exportFormat,
+                new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), 64 * 1024));
+    }
+
+    // Whole history streamed as CSV or NDJSON, optionally of one pair
+    @RequestMapping("/export/history")
+    public void exportAccountHistory(Principal principal, @RequestParam(defaultValue = "csv") String format,
+                                     @RequestParam(required = false) Long tradingPairId, HttpServletResponse response) throws Exception {
+        final Account account = accountManager.getAccount(principal.getName());
+        Assert.notNull(account);
+        final TradingPair tradingPair = tradingPairId == null ? null : settingsManager.getTradingPair(tradingPairId);
+        Assert.isTrue(tradingPairId == null || tradingPair != null, "Invalid pair");
+        final HistoryExporter.Format exportFormat = HistoryExporter.Format.of(format);
+        response.setContentType(exportFormat.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", String.format("attachment; filename=\"history-%s.%s\"",
+                tradingPair == null ? "all" : tradingPair.getId(), exportFormat.getExtension()));
+        historyExporter.exportAccountHistory(account, tradingPair, exportFormat,
+                new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), 64 * 1024));
     }
 
     @Transactional(readOnly = true)
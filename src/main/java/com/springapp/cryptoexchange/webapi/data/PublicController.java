@@ -4,22 +4,34 @@ import com.springapp.cryptoexchange.database.HistoryManager;
 import com.springapp.cryptoexchange.database.MarketManager;
 import com.springapp.cryptoexchange.database.NewsManager;
 import com.springapp.cryptoexchange.database.SettingsManager;
+import com.springapp.cryptoexchange.database.model.Candle;
 import com.springapp.cryptoexchange.database.model.Currency;
 import com.springapp.cryptoexchange.database.model.News;
 import com.springapp.cryptoexchange.database.model.TradingPair;
+import com.springapp.cryptoexchange.utils.Calculator;
 import com.springapp.cryptoexchange.utils.ConvertService;
+import com.springapp.cryptoexchange.utils.ResponseCache;
+import com.springapp.cryptoexchange.utils.TickerService;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 
 @RestController
@@ -27,6 +39,7 @@ import java.util.List;
 @CommonsLog
 @Profile("data")
 public class PublicController {
+    static final int CHART_SIZE = 100, CHART_RANGE_SIZE = 5000;
 
     @Autowired
     SettingsManager settingsManager;
@@ -43,6 +56,12 @@ public class PublicController {
     @Autowired
     NewsManager newsManager;
 
+    @Autowired
+    TickerService tickerService;
+
+    @Autowired
+    ResponseCache responseCache;
+
     @Cacheable("getCurrencies")
     @RequestMapping(value = "/currencies")
     public List<Currency> getCurrencies() {
@@ -78,40 +97,118 @@ public class PublicController {
     }
 
 
+    @RequestMapping(value = "/tickers")
+    public ResponseEntity<byte[]> getTickers(HttpServletRequest request) throws Exception {
+        return responseCache.respond(request, tickerService.getEncodedTickers());
+    }
+
     @Cacheable(value = "getTradingPairInfo", key = "#tradingPairId")
     @RequestMapping(value = "/trading_pair/{tradingPairId}")
     public TradingPair getTradingPairInfo(@PathVariable long tradingPairId) {
-        return settingsManager.getTradingPair(tradingPairId);
+        TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+        Assert.notNull(tradingPair, "Trading pair not found");
+        return historyManager.withTicker(tradingPair);
     }
 
+    // Next page: ?before=time_id of the last entry, only the first page changes and is cached
     @Transactional(readOnly = true)
-    @Cacheable(value = "getMarketHistory", key = "#tradingPairId")
     @RequestMapping("/history/{tradingPairId}")
-    public List<ConvertService.MarketHistory> getMarketHistory(@PathVariable long tradingPairId) throws Exception {
-        TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+    public ResponseEntity<byte[]> getMarketHistory(@PathVariable long tradingPairId, @RequestParam(required = false) String before,
+                                                   HttpServletRequest request) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
         Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
-        return convertService.createHistory(historyManager.getMarketHistory(tradingPair).setMaxResults(50));
+        if (before != null) {
+            return responseCache.respond(request, responseCache.encode(convertService.createHistory(
+                    historyManager.getMarketHistory(tradingPair, HistoryManager.Cursor.parse(before)).setMaxResults(50))));
+        }
+        return responseCache.respond(request, "getMarketHistory", tradingPairId, new ResponseCache.Producer() {
+            @Override
+            public Object produce() throws Exception {
+                return convertService.createHistory(historyManager.getMarketHistory(tradingPair, null).setMaxResults(50));
+            }
+        });
     }
 
-    @SuppressWarnings("unchecked")
-    @Transactional(readOnly = true)
-    @Cacheable(value = "getMarketChartData", key = "#tradingPairId")
+    // Latest candles by default, "from"/"to" (epoch ms) select a range of up to CHART_RANGE_SIZE candles
+    // Columnar and binary formats are downsampled to "points" candles, ranges are not cached
     @RequestMapping("/chart/{tradingPairId}")
-    public Object[][] getMarketChartData(@PathVariable long tradingPairId) throws Exception {
-        TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+    public ResponseEntity<byte[]> getMarketChartData(@PathVariable long tradingPairId, @RequestParam(defaultValue = "1h") String interval,
+                                                     @RequestParam(defaultValue = "highcharts") String format,
+                                                     @RequestParam(required = false) final Long from, @RequestParam(required = false) final Long to,
+                                                     @RequestParam(required = false) final Integer points, HttpServletRequest request) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
         Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
-        return convertService.createHighChartsOHLCData(historyManager.getMarketChartData(tradingPair).setMaxResults(100).list());
+        Assert.isTrue(from == null || to == null || from <= to, "Invalid range");
+        Assert.isTrue(points == null || (points >= 3 && points <= CHART_RANGE_SIZE), "Invalid points");
+        final Candle.Interval chartInterval = Candle.Interval.of(interval);
+        final ConvertService.ChartFormat chartFormat = ConvertService.ChartFormat.of(format);
+        final boolean range = from != null || to != null;
+        final ResponseCache.Producer producer = new ResponseCache.Producer() {
+            @Override
+            public Object produce() throws Exception {
+                final List<Candle> candles = new ArrayList<>(range
+                        ? historyManager.getMarketChartData(tradingPair, chartInterval, from == null ? null : new Date(from), to == null ? null : new Date(to), CHART_RANGE_SIZE)
+                        : historyManager.getMarketChartData(tradingPair, chartInterval, CHART_SIZE));
+                final Candle current = to == null ? historyManager.getCurrentCandle(tradingPair, chartInterval) : null;
+                if (current != null && (from == null || current.getOpenTime().getTime() >= from)) { // Open candle from memory replaces the written one
+                    final int size = range ? CHART_RANGE_SIZE : CHART_SIZE;
+                    if (!candles.isEmpty() && candles.get(0).getOpenTime().getTime() == current.getOpenTime().getTime()) {
+                        candles.set(0, current);
+                    } else {
+                        candles.add(0, current);
+                        if (candles.size() > size) candles.remove(size);
+                    }
+                }
+                switch (chartFormat) {
+                    case COLUMNAR:
+                        return convertService.createChartData(candles, points == null ? 0 : points);
+                    case BINARY:
+                        return responseCache.wrap(convertService.encodeChartData(convertService.createChartData(candles, points == null ? 0 : points)));
+                    default:
+                        return convertService.createHighChartsOHLCData(candles);
+                }
+            }
+        };
+        final MediaType contentType = chartFormat == ConvertService.ChartFormat.BINARY ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON;
+        if (range || points != null) {
+            final Object value = producer.produce();
+            return responseCache.respond(request, value instanceof ResponseCache.Entry ? (ResponseCache.Entry) value : responseCache.encode(value), contentType);
+        }
+        return responseCache.respond(request, responseCache.get("getMarketChartResponse",
+                tradingPairId + "/" + chartInterval.getCode() + "/" + chartFormat, producer), contentType);
     }
 
     @Transactional(readOnly = true)
-    @Cacheable(value = "getMarketDepth", key = "#tradingPairId")
     @RequestMapping("/depth/{tradingPairId}")
-    public ConvertService.Depth getMarketDepth(@PathVariable long tradingPairId) throws Exception {
-        TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+    public ResponseEntity<byte[]> getMarketDepth(@PathVariable long tradingPairId, @RequestParam(value = "limit", defaultValue = "20") final int limit,
+                                                 @RequestParam(value = "group", required = false) final BigDecimal group, HttpServletRequest request) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
         Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
-        return convertService.createDepth(tradingPair, 20);
+        Assert.isTrue(Arrays.binarySearch(ConvertService.DEPTH_LIMITS, limit) >= 0, "Invalid depth size");
+        final long tick = group == null ? 1 : Calculator.toUnits(group);
+        Assert.isTrue(Arrays.binarySearch(ConvertService.DEPTH_TICKS, tick) >= 0 && (group == null || Calculator.fromUnits(tick).compareTo(group) == 0), "Invalid grouping tick");
+        final long version = responseCache.getVersion("getMarketDepthVersion", tradingPairId); // Evicted by CacheCleaner
+        return responseCache.respond(request, responseCache.get("getMarketDepth", tradingPairId + "/" + version + "/" + limit + "/" + tick, new ResponseCache.Producer() {
+            @Override
+            public Object produce() throws Exception {
+                return convertService.createDepth(tradingPair, limit, group);
+            }
+        }));
     }
 
+    // Every resting order, stamped with the book version: newer snapshots have greater versions
+    // Not related to the sequence of market stream events, a client resynchronizing a full book polls this
+    @RequestMapping("/orderbook/{tradingPairId}")
+    public ResponseEntity<byte[]> getOrderBookSnapshot(@PathVariable long tradingPairId, HttpServletRequest request) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+        Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
+        return responseCache.respond(request, "getOrderBookSnapshot", tradingPairId, new ResponseCache.Producer() {
+            @Override
+            public Object produce() throws Exception {
+                return convertService.createOrderBookSnapshot(tradingPair);
+            }
+        });
+    }
 
     @Cacheable("getNews")
     @RequestMapping(value = "/news")
@@ -0,0 +1,75 @@
+package com.springapp.cryptoexchange.webapi.data;
+
+import com.springapp.cryptoexchange.database.AccountManager;
+import com.springapp.cryptoexchange.database.SettingsManager;
+import com.springapp.cryptoexchange.database.model.Account;
+import com.springapp.cryptoexchange.database.model.TradingPair;
+import com.springapp.cryptoexchange.utils.AccountStream;
+import com.springapp.cryptoexchange.utils.MarketStream;
+import com.springapp.cryptoexchange.utils.StreamHub;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.security.Principal;
+
+// Server-sent events, first one is "snapshot" with the topic sequence it includes
+// Market: "depth", "trade" and "ticker" events; account: "order", "fill" and "balance" events
+// Client resyncs by reconnecting with the last seen id (Last-Event-ID or ?since=) when sequence has a gap
+@RestController
+@RequestMapping("/rest/stream")
+@CommonsLog
+@Profile("data")
+public class StreamController {
+    @Autowired
+    SettingsManager settingsManager;
+
+    @Autowired
+    StreamHub streamHub;
+
+    @Autowired
+    MarketStream marketStream;
+
+    @Autowired
+    AccountManager accountManager;
+
+    @Autowired
+    AccountStream accountStream;
+
+    @RequestMapping("/market/{tradingPairId}")
+    public void streamMarket(@PathVariable long tradingPairId, @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+                             @RequestParam(value = "since", required = false) Long since, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        final TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+        Assert.isTrue(tradingPair != null && tradingPair.isEnabled(), "Invalid pair");
+        streamHub.subscribe(request, response, MarketStream.topic(tradingPairId), lastEventId != null ? lastEventId : since, new StreamHub.SnapshotProvider() {
+            @Override
+            public StreamHub.Snapshot snapshot() throws Exception {
+                return marketStream.getSnapshot(tradingPair);
+            }
+        });
+    }
+
+    @Secured("ROLE_USER")
+    @RequestMapping("/account")
+    public void streamAccount(Principal principal, @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+                              @RequestParam(value = "since", required = false) Long since, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        final Account account = accountManager.getAccount(principal.getName());
+        Assert.isTrue(account != null && account.isEnabled(), "Invalid account");
+        if (!accountStream.watch(account.getLogin())) lastEventId = since = null; // Changes were missed while unwatched, snapshot watches it again
+        streamHub.subscribe(request, response, AccountStream.topic(account.getLogin()), lastEventId != null ? lastEventId : since, new StreamHub.SnapshotProvider() {
+            @Override
+            public StreamHub.Snapshot snapshot() throws Exception {
+                return accountStream.getSnapshot(account);
+            }
+        });
+    }
+}
@@ -1,11 +1,37 @@
 package com.springapp.cryptoexchange.webapi.master;
 
 import com.springapp.cryptoexchange.database.model.Order;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
 
 import java.math.BigDecimal;
 import java.security.Principal;
+import java.util.List;
 
 public interface TradingController {
-    long createOrder(long tradingPairId, Order.Type type, BigDecimal price, BigDecimal amount, Principal principal) throws Exception;
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class OrderRequest {
+        long tradingPairId;
+        Order.Type type;
+        BigDecimal price;
+        BigDecimal amount;
+        Order.Execution execution = Order.Execution.LIMIT;
+    }
+
+    @Value
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public static class OrderStatus {
+        long id;
+        Order.Status status;
+        String error;
+    }
+
+    long createOrder(long tradingPairId, Order.Type type, Order.Execution execution, BigDecimal price, BigDecimal amount, Principal principal) throws Exception;
+    List<OrderStatus> createOrders(List<OrderRequest> orders, Principal principal) throws Exception;
+    List<OrderStatus> replaceOrders(long tradingPairId, List<OrderRequest> orders, Principal principal) throws Exception;
     void cancelOrder(long orderId, Principal principal) throws Exception;
+    int cancelOrders(Long tradingPairId, Order.Type type, Principal principal) throws Exception;
 }
@@ -4,6 +4,7 @@ import com.springapp.cryptoexchange.database.AccountManager;
 import com.springapp.cryptoexchange.database.MarketManager;
 import com.springapp.cryptoexchange.database.SettingsManager;
 import com.springapp.cryptoexchange.database.model.Account;
+import com.springapp.cryptoexchange.database.model.Currency;
 import com.springapp.cryptoexchange.database.model.Order;
 import com.springapp.cryptoexchange.database.model.TradingPair;
 import com.springapp.cryptoexchange.database.model.VirtualWallet;
@@ -11,14 +12,13 @@ import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.security.access.annotation.Secured;
-import org.springframework.transaction.annotation.Isolation;
-import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.*;
 
 import java.math.BigDecimal;
 import java.security.Principal;
+import java.util.*;
 
 @RestController
 @CommonsLog
@@ -26,6 +26,8 @@ import java.security.Principal;
 @RequestMapping("/rest/trade.json")
 @Profile("master")
 public class TradingControllerImpl implements TradingController {
+    static final int MAX_BATCH_SIZE = 100;
+
     @Autowired
     SettingsManager settingsManager;
 
@@ -35,17 +37,63 @@ public class TradingControllerImpl implements TradingController {
     @Autowired
     AccountManager accountManager;
 
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE)
     @Override
     @RequestMapping(value = "/order/create/{tradingPairId}", method = RequestMethod.POST)
     @SuppressWarnings("all")
-    public long createOrder(@PathVariable long tradingPairId, @RequestParam Order.Type type, @RequestParam BigDecimal price, @RequestParam BigDecimal amount, Principal principal) throws Exception {
+    public long createOrder(@PathVariable long tradingPairId, @RequestParam Order.Type type, @RequestParam(defaultValue = "LIMIT") Order.Execution execution, @RequestParam(required = false) BigDecimal price, @RequestParam BigDecimal amount, Principal principal) throws Exception {
         try {
             TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
             Account account = accountManager.getAccount(principal.getName());
             Assert.isTrue(account != null && tradingPair != null && account.isEnabled() && tradingPair.isEnabled(), "Invalid parameters");
             VirtualWallet sourceWallet = accountManager.getVirtualWallet(account, type.equals(Order.Type.SELL) ? tradingPair.getFirstCurrency() : tradingPair.getSecondCurrency()), destWallet = accountManager.getVirtualWallet(account, type.equals(Order.Type.SELL) ? tradingPair.getSecondCurrency() : tradingPair.getFirstCurrency());
-            return marketManager.executeOrder(new Order(type, amount, price, tradingPair, sourceWallet, destWallet, account)).getId();
+            Assert.isTrue(price != null || execution == Order.Execution.MARKET, "Price required");
+            Order order = new Order(type, amount, price == null ? BigDecimal.ZERO : price, tradingPair, sourceWallet, destWallet, account);
+            order.setExecution(execution);
+            return marketManager.executeOrder(order).getId();
+        } catch (Exception e) {
+            log.debug(e.getStackTrace());
+            log.error(e);
+            throw e;
+        }
+    }
+
+    @Override
+    @RequestMapping(value = "/order/create", method = RequestMethod.POST)
+    @SuppressWarnings("all")
+    public List<OrderStatus> createOrders(@RequestBody List<OrderRequest> orderRequests, Principal principal) throws Exception {
+        try {
+            Assert.isTrue(!orderRequests.isEmpty() && orderRequests.size() <= MAX_BATCH_SIZE, String.format("Batch size must be 1-%d orders", MAX_BATCH_SIZE));
+            Account account = accountManager.getAccount(principal.getName());
+            Assert.isTrue(account != null && account.isEnabled(), "Invalid parameters");
+
+            final OrderStatus[] statuses = new OrderStatus[orderRequests.size()];
+            final List<Order> orders = new ArrayList<>(orderRequests.size());
+            final List<Integer> indexes = new ArrayList<>(orderRequests.size());
+            final Map<Long, VirtualWallet> wallets = new HashMap<>(); // Currency => wallet
+            for (int i = 0; i < orderRequests.size(); i++) {
+                final OrderRequest request = orderRequests.get(i);
+                TradingPair tradingPair = settingsManager.getTradingPair(request.getTradingPairId());
+                if (tradingPair == null || !tradingPair.isEnabled() || request.getType() == null || request.getAmount() == null || request.getExecution() == null
+                        || (request.getPrice() == null && request.getExecution() != Order.Execution.MARKET)) {
+                    statuses[i] = new OrderStatus(0, null, "Invalid parameters");
+                    continue;
+                }
+                final boolean sell = request.getType().equals(Order.Type.SELL);
+                VirtualWallet sourceWallet = getVirtualWallet(wallets, account, sell ? tradingPair.getFirstCurrency() : tradingPair.getSecondCurrency()),
+                        destWallet = getVirtualWallet(wallets, account, sell ? tradingPair.getSecondCurrency() : tradingPair.getFirstCurrency());
+                Order order = new Order(request.getType(), request.getAmount(), request.getPrice() == null ? BigDecimal.ZERO : request.getPrice(), tradingPair, sourceWallet, destWallet, account);
+                order.setExecution(request.getExecution());
+                orders.add(order);
+                indexes.add(i);
+            }
+
+            final List<Exception> rejections = marketManager.executeOrders(orders);
+            for (int i = 0; i < orders.size(); i++) {
+                final Order order = orders.get(i);
+                final Exception rejection = rejections.get(i);
+                statuses[indexes.get(i)] = rejection == null ? new OrderStatus(order.getId(), order.getStatus(), null) : new OrderStatus(0, null, rejection.getMessage());
+            }
+            return Arrays.asList(statuses);
         } catch (Exception e) {
             log.debug(e.getStackTrace());
             log.error(e);
@@ -53,7 +101,49 @@ public class TradingControllerImpl implements TradingController {
         }
     }
 
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE)
+    @Override
+    @RequestMapping(value = "/order/replace/{tradingPairId}", method = RequestMethod.POST)
+    @SuppressWarnings("all")
+    public List<OrderStatus> replaceOrders(@PathVariable long tradingPairId, @RequestBody List<OrderRequest> orderRequests, Principal principal) throws Exception {
+        try {
+            Assert.isTrue(orderRequests.size() <= MAX_BATCH_SIZE, String.format("Batch size must be 0-%d orders", MAX_BATCH_SIZE));
+            TradingPair tradingPair = settingsManager.getTradingPair(tradingPairId);
+            Account account = accountManager.getAccount(principal.getName());
+            Assert.isTrue(account != null && tradingPair != null && account.isEnabled() && tradingPair.isEnabled(), "Invalid parameters");
+
+            final Map<Long, VirtualWallet> wallets = new HashMap<>();
+            final List<Order> orders = new ArrayList<>(orderRequests.size());
+            for (OrderRequest request : orderRequests) {
+                Assert.isTrue(request.getType() != null && request.getPrice() != null && request.getAmount() != null
+                        && (request.getTradingPairId() == 0 || request.getTradingPairId() == tradingPairId), "Invalid parameters");
+                final boolean sell = request.getType().equals(Order.Type.SELL);
+                VirtualWallet sourceWallet = getVirtualWallet(wallets, account, sell ? tradingPair.getFirstCurrency() : tradingPair.getSecondCurrency()),
+                        destWallet = getVirtualWallet(wallets, account, sell ? tradingPair.getSecondCurrency() : tradingPair.getFirstCurrency());
+                orders.add(new Order(request.getType(), request.getAmount(), request.getPrice(), tradingPair, sourceWallet, destWallet, account));
+            }
+
+            final List<OrderStatus> statuses = new ArrayList<>(orders.size());
+            for (Order order : marketManager.replaceOrders(account, tradingPair, orders)) {
+                statuses.add(new OrderStatus(order.getId(), order.getStatus(), null));
+            }
+            return statuses;
+        } catch (Exception e) {
+            log.debug(e.getStackTrace());
+            log.error(e);
+            throw e;
+        }
+    }
+
+    private VirtualWallet getVirtualWallet(Map<Long, VirtualWallet> wallets, Account account, Currency currency) throws Exception {
+        VirtualWallet wallet = wallets.get(currency.getId());
+        if (wallet == null) {
+            wallet = accountManager.getVirtualWallet(account, currency);
+            wallets.put(currency.getId(), wallet);
+        }
+        return wallet;
+    }
+
+    @Transactional(readOnly = true) // Cancel itself is applied by the pair's matching thread
     @Override
     @RequestMapping(value = "/order/{orderId}/cancel", method = RequestMethod.POST)
     @SuppressWarnings("unchecked")
@@ -69,4 +159,20 @@ public class TradingControllerImpl implements TradingController {
             throw e;
         }
     }
+
+    @Override
+    @RequestMapping(value = "/order/cancel", method = RequestMethod.POST)
+    @SuppressWarnings("unchecked")
+    public int cancelOrders(@RequestParam(required = false) Long tradingPairId, @RequestParam(required = false) Order.Type type, Principal principal) throws Exception {
+        try {
+            Account account = accountManager.getAccount(principal.getName());
+            TradingPair tradingPair = tradingPairId == null ? null : settingsManager.getTradingPair(tradingPairId);
+            Assert.isTrue(account != null && (tradingPairId == null || tradingPair != null), "Invalid parameters");
+            return marketManager.cancelOrders(account, tradingPair, type);
+        } catch (Exception e) {
+            log.debug(e.getStackTrace());
+            log.error(e);
+            throw e;
+        }
+    }
 }
@@ -25,7 +25,6 @@ import org.springframework.util.Assert;
 import org.springframework.web.context.WebApplicationContext;
 
 import java.math.BigDecimal;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -214,9 +213,9 @@ public class AppTests {
         log.debug("Source: " + secondBuyWallet.getVirtualBalance() + " " + firstSellWallet.getVirtualBalance() +
                 "\nDest: " + firstBuyWallet.getVirtualBalance() + " " + secondSellWallet.getVirtualBalance());
 
-        List<Candle> history = historyManager.getMarketChartData(tradingPair).list();
-        log.info(history.get(0));
-        Assert.isTrue(history.get(0).getClose().compareTo(sellPrice) == 0, "Invalid chart");
+        Candle candle = historyManager.getCurrentCandle(tradingPair, Candle.Interval.H1);
+        log.info(candle);
+        Assert.isTrue(candle.getClose().compareTo(sellPrice) == 0, "Invalid chart");
     }
 
     @Test
@@ -0,0 +1,44 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Trade;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistoryManagerImplTest {
+    private static Trade trade(long id, long time) {
+        final Trade trade = new Trade();
+        trade.setId(id);
+        trade.setTime(new Date(time));
+        return trade;
+    }
+
+    private static List<Long> ids(List<Trade> trades) {
+        final List<Long> ids = new ArrayList<>();
+        for (Trade trade : trades) ids.add(trade.getId());
+        return ids;
+    }
+
+    @Test
+    public void mergeNewestFirst() {
+        final List<Trade> sold = Arrays.asList(trade(5, 500), trade(3, 300), trade(1, 100)),
+                bought = Arrays.asList(trade(4, 400), trade(3, 300), trade(2, 200)); // Trade 3 with itself
+        assertEquals(Arrays.asList(5L, 4L, 3L, 2L, 1L), ids(HistoryManagerImpl.merge(sold, bought, 10)));
+        assertEquals(Arrays.asList(5L, 4L, 3L), ids(HistoryManagerImpl.merge(sold, bought, 3)));
+    }
+
+    @Test
+    public void mergeSameTimeById() {
+        assertEquals(Arrays.asList(8L, 7L, 6L), ids(HistoryManagerImpl.merge(Arrays.asList(trade(7, 100)), Arrays.asList(trade(8, 100), trade(6, 100)), 10)));
+    }
+
+    @Test
+    public void mergeOneSide() {
+        final List<Trade> trades = Arrays.asList(trade(2, 200), trade(1, 100));
+        assertEquals(Arrays.asList(2L, 1L), ids(HistoryManagerImpl.merge(trades, Collections.<Trade>emptyList(), 10)));
+        assertEquals(Collections.singletonList(2L), ids(HistoryManagerImpl.merge(Collections.<Trade>emptyList(), trades, 1)));
+        assertEquals(Collections.<Long>emptyList(), ids(HistoryManagerImpl.merge(Collections.<Trade>emptyList(), Collections.<Trade>emptyList(), 10)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarketManagerImplTest {
+    // Same walk as matchOrder, without persistence
+    private static List<Long> sweep(OrderBook orderBook, Order.Type takerType, long price, long amount) {
+        final List<Long> prices = new ArrayList<>();
+        OrderBook.Entry entry;
+        while (amount > 0 && (entry = orderBook.getBest(OrderBook.opposite(takerType))) != null
+                && OrderBook.crosses(entry, takerType, price)) {
+            final long tradeAmount = Math.min(entry.getRemainingAmount(), amount);
+            prices.add(MarketManagerImpl.tradePrice(entry));
+            orderBook.fill(entry, tradeAmount);
+            amount -= tradeAmount;
+        }
+        return prices;
+    }
+
+    @Test
+    public void marketSellFillsEachBidAtItsPrice() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(new OrderBook.Entry(1, Order.Type.BUY, 100, 5, new Date()));
+        orderBook.add(new OrderBook.Entry(2, Order.Type.BUY, 99, 5, new Date()));
+        orderBook.add(new OrderBook.Entry(3, Order.Type.BUY, 98, 5, new Date()));
+        final long sweepPrice = orderBook.getSweepPrice(Order.Type.SELL, 12);
+        assertEquals(98, sweepPrice);
+        assertEquals(Arrays.asList(100L, 99L, 98L), sweep(orderBook, Order.Type.SELL, sweepPrice, 12));
+        assertEquals(3, orderBook.getBest(Order.Type.BUY).getRemainingAmount());
+    }
+
+    @Test
+    public void marketBuyFillsEachAskAtItsPrice() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(new OrderBook.Entry(1, Order.Type.SELL, 101, 5, new Date()));
+        orderBook.add(new OrderBook.Entry(2, Order.Type.SELL, 102, 5, new Date()));
+        final long sweepPrice = orderBook.getSweepPrice(Order.Type.BUY, 10);
+        assertEquals(102, sweepPrice);
+        assertEquals(Arrays.asList(101L, 102L), sweep(orderBook, Order.Type.BUY, sweepPrice, 10));
+    }
+}
@@ -0,0 +1,163 @@
+package com.springapp.cryptoexchange.database;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OrderBookTest {
+    private static OrderBook.Entry entry(long orderId, Order.Type type, long price, long amount) {
+        return new OrderBook.Entry(orderId, type, price, amount, new Date());
+    }
+
+    private static List<Long> ids(List<OrderBook.Entry> entries) {
+        final List<Long> ids = new ArrayList<>();
+        for (OrderBook.Entry entry : entries) ids.add(entry.getOrderId());
+        return ids;
+    }
+
+    private static Map.Entry<Long, Long> level(long price, long amount) {
+        return new AbstractMap.SimpleEntry<>(price, amount);
+    }
+
+    @Test
+    public void fifoWithinLevel() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.BUY, 100, 5));
+        orderBook.add(entry(2, Order.Type.BUY, 100, 5));
+        orderBook.add(entry(3, Order.Type.BUY, 100, 5));
+        assertEquals(1, orderBook.getBest(Order.Type.BUY).getOrderId());
+        orderBook.fill(orderBook.getBest(Order.Type.BUY), 5);
+        assertEquals(2, orderBook.getBest(Order.Type.BUY).getOrderId());
+        orderBook.remove(2);
+        assertEquals(3, orderBook.getBest(Order.Type.BUY).getOrderId());
+        orderBook.add(entry(4, Order.Type.BUY, 100, 5));
+        assertEquals(3, orderBook.getBest(Order.Type.BUY).getOrderId());
+    }
+
+    @Test
+    public void pricePriority() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.BUY, 100, 1));
+        orderBook.add(entry(2, Order.Type.BUY, 101, 1));
+        orderBook.add(entry(3, Order.Type.SELL, 103, 1));
+        orderBook.add(entry(4, Order.Type.SELL, 102, 1));
+        assertEquals(2, orderBook.getBest(Order.Type.BUY).getOrderId());
+        assertEquals(4, orderBook.getBest(Order.Type.SELL).getOrderId());
+        assertNull(new OrderBook(1).getBest(Order.Type.SELL));
+    }
+
+    @Test
+    public void partialFill() {
+        final OrderBook orderBook = new OrderBook(1);
+        final OrderBook.Entry entry = entry(1, Order.Type.SELL, 100, 10);
+        orderBook.add(entry);
+        orderBook.fill(entry, 4);
+        assertEquals(6, entry.getRemainingAmount());
+        assertSame(entry, orderBook.getBest(Order.Type.SELL));
+        assertEquals(Collections.singletonList(new OrderBook.Level(100, 6)), orderBook.getDepth(Order.Type.SELL, 10));
+        orderBook.fill(entry, 6);
+        assertNull(orderBook.get(1));
+        assertEquals(0, orderBook.size());
+        assertTrue(orderBook.getDepth(Order.Type.SELL, 10).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overfill() {
+        final OrderBook orderBook = new OrderBook(1);
+        final OrderBook.Entry entry = entry(1, Order.Type.BUY, 100, 10);
+        orderBook.add(entry);
+        orderBook.fill(entry, 11);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void duplicateOrder() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.BUY, 100, 10));
+        orderBook.add(entry(1, Order.Type.BUY, 101, 10));
+    }
+
+    @Test
+    public void depthMaintenance() {
+        final OrderBook orderBook = new OrderBook(1);
+        final long version = orderBook.getVersion();
+        orderBook.add(entry(1, Order.Type.BUY, 100, 5));
+        orderBook.add(entry(2, Order.Type.BUY, 100, 3));
+        orderBook.add(entry(3, Order.Type.BUY, 99, 7));
+        orderBook.add(entry(4, Order.Type.SELL, 101, 2));
+        assertTrue(orderBook.getVersion() > version);
+        assertEquals(Arrays.asList(new OrderBook.Level(100, 8), new OrderBook.Level(99, 7)), orderBook.getDepth(Order.Type.BUY, 10));
+        assertEquals(Collections.singletonList(new OrderBook.Level(100, 8)), orderBook.getDepth(Order.Type.BUY, 1));
+        assertEquals(Collections.singletonList(new OrderBook.Level(101, 2)), orderBook.getDepth(Order.Type.SELL, 10));
+        orderBook.fill(orderBook.get(1), 2);
+        orderBook.remove(2);
+        assertEquals(Arrays.asList(new OrderBook.Level(100, 3), new OrderBook.Level(99, 7)), orderBook.getDepth(Order.Type.BUY, 10));
+        orderBook.remove(1);
+        assertEquals(Collections.singletonList(new OrderBook.Level(99, 7)), orderBook.getDepth(Order.Type.BUY, 10));
+        assertEquals(9, orderBook.getTotalAmount());
+        orderBook.clear();
+        assertTrue(orderBook.getDepth(Order.Type.BUY, 10).isEmpty());
+        assertTrue(orderBook.getDepth(Order.Type.SELL, 10).isEmpty());
+    }
+
+    @Test
+    public void snapshot() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.BUY, 100, 5));
+        orderBook.add(entry(2, Order.Type.BUY, 101, 5));
+        orderBook.add(entry(3, Order.Type.BUY, 100, 5));
+        orderBook.add(entry(4, Order.Type.SELL, 103, 5));
+        orderBook.add(entry(5, Order.Type.SELL, 102, 5));
+        orderBook.fill(orderBook.get(2), 1);
+        final OrderBook.Snapshot snapshot = orderBook.getSnapshot(0);
+        assertEquals(orderBook.getVersion(), snapshot.getVersion());
+        assertEquals(Arrays.asList(2L, 1L, 3L), ids(snapshot.getBids()));
+        assertEquals(Arrays.asList(5L, 4L), ids(snapshot.getAsks()));
+        assertEquals(4, snapshot.getBids().get(0).getRemainingAmount());
+        assertSame(snapshot, orderBook.getSnapshot(0)); // Unchanged version
+
+        orderBook.remove(1);
+        orderBook.fill(orderBook.get(5), 5);
+        assertSame(snapshot, orderBook.getSnapshot(60 * 1000)); // Younger than max age
+        final OrderBook.Snapshot changed = orderBook.getSnapshot(0);
+        assertEquals(Arrays.asList(2L, 3L), ids(changed.getBids()));
+        assertEquals(Collections.singletonList(4L), ids(changed.getAsks()));
+        assertEquals(Arrays.asList(2L, 1L, 3L), ids(snapshot.getBids())); // Detached
+    }
+
+    @Test
+    public void matchingStopsAtLimitAndAmount() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.SELL, 101, 5));
+        orderBook.add(entry(2, Order.Type.SELL, 102, 5));
+        orderBook.add(entry(3, Order.Type.SELL, 102, 5));
+        orderBook.add(entry(4, Order.Type.SELL, 103, 5));
+        assertEquals(Arrays.asList(1L, 2L), ids(orderBook.getMatching(Order.Type.BUY, 103, 6)));
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(orderBook.getMatching(Order.Type.BUY, 102, 100)));
+        assertTrue(orderBook.getMatching(Order.Type.BUY, 100, 1).isEmpty());
+        assertEquals(15, orderBook.getLiquidity(Order.Type.BUY, 102, 100));
+    }
+
+    @Test
+    public void groupRoundsBidsDownAndAsksUp() {
+        assertEquals(Arrays.asList(new OrderBook.Level(100, 3), new OrderBook.Level(90, 3)),
+                OrderBook.group(Arrays.asList(level(105, 1), level(100, 2), level(95, 3)), Order.Type.BUY, 10, 10));
+        assertEquals(Arrays.asList(new OrderBook.Level(100, 3), new OrderBook.Level(110, 3)),
+                OrderBook.group(Arrays.asList(level(95, 1), level(100, 2), level(109, 3)), Order.Type.SELL, 10, 10));
+        assertEquals(Collections.singletonList(new OrderBook.Level(100, 3)),
+                OrderBook.group(Arrays.asList(level(105, 1), level(100, 2), level(95, 3)), Order.Type.BUY, 10, 1));
+        assertEquals(Arrays.asList(new OrderBook.Level(105, 1), new OrderBook.Level(100, 2)),
+                OrderBook.group(Arrays.asList(level(105, 1), level(100, 2), level(95, 3)), Order.Type.BUY, 1, 2));
+    }
+
+    @Test
+    public void groupedDepth() {
+        final OrderBook orderBook = new OrderBook(1);
+        orderBook.add(entry(1, Order.Type.SELL, 101, 1));
+        orderBook.add(entry(2, Order.Type.SELL, 110, 2));
+        orderBook.add(entry(3, Order.Type.SELL, 111, 4));
+        assertEquals(Arrays.asList(new OrderBook.Level(110, 3), new OrderBook.Level(120, 4)), orderBook.getDepth(Order.Type.SELL, 10, 10));
+    }
+}
@@ -0,0 +1,99 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.model.Order;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalculatorTest {
+    static final long UNIT = Calculator.UNIT;
+
+    @Test
+    public void feeIsRoundedDown() {
+        final long amount = 123456789012L, feePercent = 25000000L; // 1234.56789012 at 0.25%
+        final long fee = Calculator.fee(amount, feePercent);
+        assertEquals(308641972L, fee); // Exactly 3.0864197253
+        assertEquals(amount, Calculator.withoutFee(amount, feePercent) + fee);
+        assertEquals(amount + fee, Calculator.withFee(amount, feePercent));
+    }
+
+    @Test
+    public void feeMatchesDecimalFee() {
+        assertEquals(Calculator.toUnits(Calculator.fee(new BigDecimal("1.00000099"), new BigDecimal("0.2"))), Calculator.fee(100000099L, 20000000L));
+    }
+
+    @Test
+    public void totalIsRoundedDown() {
+        assertEquals(1L, Calculator.buyTotal(150000000L, 1L)); // 1.5 at 0.00000001
+        assertEquals(75000000L, Calculator.buyTotal(3 * UNIT, 25000000L));
+        assertEquals(Calculator.buyTotal(150000000L, 1L), Calculator.totalRequired(Order.Type.BUY, 150000000L, 1L));
+        assertEquals(150000000L, Calculator.totalRequired(Order.Type.SELL, 150000000L, 1L));
+    }
+
+    @Test
+    public void roundingDirection() {
+        assertEquals(-2L, Calculator.multiply(-150000000L, 1L, RoundingMode.FLOOR));
+        assertEquals(2L, Calculator.multiply(150000000L, 1L, RoundingMode.CEILING));
+        assertEquals(2L, Calculator.multiply(150000000L, 1L, RoundingMode.HALF_EVEN));
+        assertEquals(2L, Calculator.multiply(250000000L, 1L, RoundingMode.HALF_EVEN));
+        assertEquals(33333333L, Calculator.divide(UNIT, 3 * UNIT, RoundingMode.FLOOR));
+        assertEquals(33333334L, Calculator.divide(UNIT, 3 * UNIT, RoundingMode.CEILING));
+        assertEquals(-33333334L, Calculator.divide(-UNIT, 3 * UNIT, RoundingMode.FLOOR));
+        assertEquals(2 * UNIT, Calculator.divide(Long.MAX_VALUE - 1, Long.MAX_VALUE / 2, RoundingMode.FLOOR)); // Decimal path
+    }
+
+    @Test
+    public void toUnitsIsRoundedDown() {
+        assertEquals(12345678L, Calculator.toUnits(new BigDecimal("0.123456789")));
+        assertEquals(-12345679L, Calculator.toUnits(new BigDecimal("-0.123456789")));
+    }
+
+    @Test
+    public void unitsRoundTrip() {
+        for (long units : new long[]{0, 1, -1, UNIT, 123456789012L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(units, Calculator.toUnits(Calculator.fromUnits(units)));
+        }
+        for (String value : new String[]{"0", "0.00000001", "1", "-1.5", "1234.56789012", "92233720368.54775807"}) {
+            assertTrue(value, Calculator.fromUnits(Calculator.toUnits(new BigDecimal(value))).compareTo(new BigDecimal(value)) == 0);
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void toUnitsOverflow() {
+        Calculator.toUnits(new BigDecimal("92233720368.54775808"));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void toUnitsNegativeOverflow() {
+        Calculator.toUnits(new BigDecimal("-92233720368.54775809"));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void addOverflow() {
+        Calculator.addExact(Long.MAX_VALUE, 1);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void subtractOverflow() {
+        Calculator.subtractExact(Long.MIN_VALUE, 1);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void multiplyOverflow() {
+        Calculator.multiply(Long.MAX_VALUE, 2 * UNIT, RoundingMode.FLOOR);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void divideOverflow() {
+        Calculator.divide(Long.MAX_VALUE, 1, RoundingMode.FLOOR);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void divideByZero() {
+        Calculator.divide(1, 0, RoundingMode.FLOOR);
+    }
+}
@@ -0,0 +1,67 @@
+package com.springapp.cryptoexchange.utils;
+
+import com.springapp.cryptoexchange.database.model.Candle;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConvertServiceImplTest {
+    static final long MINUTE = 60 * 1000;
+
+    private static Candle candle(long time, double close, double high, double low, double volume) {
+        final Candle candle = new Candle();
+        candle.setOpenTime(new Date(time));
+        candle.setOpen(BigDecimal.valueOf(close));
+        candle.setClose(BigDecimal.valueOf(close));
+        candle.setHigh(BigDecimal.valueOf(high));
+        candle.setLow(BigDecimal.valueOf(low));
+        candle.setVolume(BigDecimal.valueOf(volume));
+        return candle;
+    }
+
+    // Newest first, as read from history
+    private static List<Candle> candles(int length, int spike) {
+        final List<Candle> candles = new ArrayList<>(length);
+        for (int i = length - 1; i >= 0; i--) {
+            final double close = i == spike ? 10 : 1 + (i % 7) * 0.01;
+            candles.add(candle(i * MINUTE, close, close + (i == 123 ? 50 : 0.5), close - (i == 321 ? 0.9 : 0.5), 1));
+        }
+        return candles;
+    }
+
+    @Test
+    public void downsampledBucketsCoverAllCandles() throws Exception {
+        final int length = 1000, points = 100;
+        final ConvertService.ChartData data = new ConvertServiceImpl().createChartData(candles(length, 500), points);
+        assertEquals(points, data.getTime().length);
+        assertEquals(0, data.getTime()[0]);
+        assertEquals((length - 1) * MINUTE, data.getTime()[points - 1]);
+        double volume = 0, high = 0, low = Double.MAX_VALUE, close = 0;
+        for (int i = 0; i < points; i++) {
+            if (i > 0) assertTrue(data.getTime()[i] > data.getTime()[i - 1]);
+            volume += data.getVolume()[i];
+            high = Math.max(high, data.getHigh()[i]);
+            low = Math.min(low, data.getLow()[i]);
+            close = Math.max(close, data.getClose()[i]);
+        }
+        assertEquals(length, volume, 1e-9); // Every candle in exactly one bucket
+        assertEquals(1 + (123 % 7) * 0.01 + 50, high, 1e-9);
+        assertEquals(1 + (321 % 7) * 0.01 - 0.9, low, 1e-9);
+        assertEquals(10, close, 1e-9); // Spike is kept
+    }
+
+    @Test
+    public void smallChartNotDownsampled() throws Exception {
+        final ConvertService.ChartData data = new ConvertServiceImpl().createChartData(candles(50, -1), 100);
+        assertEquals(50, data.getTime().length);
+        assertEquals(0, data.getTime()[0]);
+        assertEquals(49 * MINUTE, data.getTime()[49]);
+        assertEquals(50, new ConvertServiceImpl().createChartData(candles(50, -1), 0).getTime().length);
+    }
+}
@@ -0,0 +1,109 @@
+package com.springapp.cryptoexchange.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UdpInvalidationBusTest {
+    static final String CACHE = "getMarketDepth";
+    static final int ENTRY = 2 + CACHE.length() + 1 + 8, PER_DATAGRAM = (UdpInvalidationBus.MAX_DATAGRAM - 10) / ENTRY; // Long keys
+
+    DatagramSocket peer;
+    UdpInvalidationBus bus;
+
+    @Before
+    public void start() throws Exception {
+        peer = new DatagramSocket(0);
+        peer.setSoTimeout(500);
+        bus = new UdpInvalidationBus();
+        ReflectionTestUtils.setField(bus, "port", 0);
+        ReflectionTestUtils.setField(bus, "peersList", "127.0.0.1:" + peer.getLocalPort());
+        bus.start();
+    }
+
+    @After
+    public void stop() {
+        bus.stop();
+        peer.close();
+    }
+
+    private static List<InvalidationBus.Invalidation> invalidations(int count) {
+        final List<InvalidationBus.Invalidation> invalidations = new ArrayList<>(count);
+        for (long key = 0; key < count; key++) invalidations.add(new InvalidationBus.Invalidation(CACHE, key));
+        return invalidations;
+    }
+
+    // Invalidation count of every datagram received
+    private List<Integer> receive() throws Exception {
+        final List<Integer> counts = new ArrayList<>();
+        final byte[] buffer = new byte[UdpInvalidationBus.MAX_DATAGRAM * 2];
+        try {
+            while (true) {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                peer.receive(packet);
+                assertTrue(packet.getLength() <= UdpInvalidationBus.MAX_DATAGRAM);
+                counts.add(((buffer[8] & 0xFF) << 8) | (buffer[9] & 0xFF));
+            }
+        } catch (SocketTimeoutException e) {
+            return counts;
+        }
+    }
+
+    private static int sum(List<Integer> counts) {
+        int sum = 0;
+        for (int count : counts) sum += count;
+        return sum;
+    }
+
+    @Test
+    public void transactionIsSentInFullDatagrams() throws Exception {
+        final int size = 500;
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            for (InvalidationBus.Invalidation invalidation : invalidations(size)) bus.publish(invalidation);
+            bus.publish(invalidations(10)); // Already in the batch
+            assertEquals(0, receive().size()); // Nothing before commit
+            TransactionSynchronizationUtils.triggerAfterCommit();
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(), TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        final List<Integer> counts = receive();
+        assertEquals((size + PER_DATAGRAM - 1) / PER_DATAGRAM, counts.size());
+        assertEquals(size, sum(counts));
+        assertNull(TransactionSynchronizationManager.getResource(bus));
+    }
+
+    @Test
+    public void rolledBackTransactionIsNotSent() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            bus.publish(invalidations(100));
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(), TransactionSynchronization.STATUS_ROLLED_BACK);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertEquals(0, receive().size());
+    }
+
+    @Test
+    public void batchIsSentAtOnceOutsideOfTransaction() throws Exception {
+        final int size = 3 * PER_DATAGRAM + 1;
+        bus.publish(invalidations(size));
+        final List<Integer> counts = receive();
+        assertEquals(4, counts.size());
+        assertEquals(size, sum(counts));
+    }
+}